@@ -0,0 +1,336 @@
+// This is supporting software for CS322 Compilers and Language Design II
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+//
+// Andrew McCann
+// CS322 HW3
+// Winter 2016
+//
+
+// IR1 closure-compiled engine.
+//
+// Each IR1.Inst is turned into a Node once, before the program runs.
+// Operand kinds (slot or constant), operators and jump targets are all
+// decided while compiling, so running a function is just
+//
+//   pc = code[pc].exec(frame)
+//
+// until a node answers RETURN. Frames are the same long[] slot arrays
+// the tree-walker uses, and pcs are the same inst indices, so the two
+// engines can share a FuncLink.
+//
+
+import java.util.*;
+
+import ir.*;
+
+public class IR1Closure {
+
+	static final int RETURN = IR1Interp.RETURN;
+	static final int NONE = IR1Interp.NONE;
+
+	// A compiled inst; returns the next pc or RETURN.
+	//
+	interface Node {
+		int exec(long[] fr) throws Exception;
+	}
+
+	// A compiled function. 'code' has one Node per inst plus a final
+	// node for falling off the end.
+	//
+	static class CFunc {
+		final IR1Interp.FuncLink link;
+		Node[] code;
+
+		CFunc(IR1Interp.FuncLink link) {
+			this.link = link;
+		}
+	}
+
+	// Compiled forms, by function name
+	static HashMap<String, CFunc> cfuncs;
+
+	//-----------------------------------------------------------------
+	// Entry Points
+	//-----------------------------------------------------------------
+	//
+
+	// Compile every linked function, then run '_main'.
+	//
+	static void run(IR1Interp.FuncLink main) throws Exception {
+		cfuncs = new HashMap<>();
+		// Create all the CFuncs first, so call nodes can hold on to
+		// their callee directly
+		for (IR1Interp.FuncLink l : IR1Interp.funcMap.values())
+			cfuncs.put(l.func.gname.s, new CFunc(l));
+		for (CFunc f : cfuncs.values())
+			f.code = compile(f.link);
+		CFunc f = cfuncs.get(main.func.gname.s);
+		invoke(f, new long[f.link.nslots]);
+	}
+
+	// The run loop.
+	//
+	static void invoke(CFunc f, long[] fr) throws Exception {
+		Node[] code = f.code;
+		int pc = 0;
+		while (pc != RETURN)
+			pc = code[pc].exec(fr);
+	}
+
+	//-----------------------------------------------------------------
+	// Compilation
+	//-----------------------------------------------------------------
+	//
+	static Node[] compile(IR1Interp.FuncLink link) throws Exception {
+		IR1.Inst[] insts = link.func.code;
+		Node[] code = new Node[insts.length + 1];
+		for (int i = 0; i < insts.length; i++)
+			code[i] = compile(insts[i], link, i);
+		code[insts.length] = fr -> RETURN;
+		return code;
+	}
+
+	static Node compile(IR1.Inst n, IR1Interp.FuncLink link, int pc) throws Exception {
+		int[] o = link.opnds[pc];
+		long[] k = link.consts;
+		int next = pc + 1;
+		if (n instanceof IR1.Binop) return binop(((IR1.Binop) n).op, o[0], o[1], o[2], k, next);
+		if (n instanceof IR1.Unop) return unop(((IR1.Unop) n).op, o[0], o[1], k, next);
+		if (n instanceof IR1.Move) return move(o[0], o[1], k, next);
+		if (n instanceof IR1.Load) return load(o[0], o[1], ((IR1.Load) n).addr.offset, k, next);
+		if (n instanceof IR1.Store) return store(o[0], ((IR1.Store) n).addr.offset, o[1], k, next);
+		if (n instanceof IR1.Call) return call(link.intrinsics[pc], link.callees[pc], o, k, next);
+		if (n instanceof IR1.Return) return ret(o[0], k);
+		if (n instanceof IR1.CJump) return cjump(((IR1.CJump) n).op, o[0], o[1], k, link.targets[pc], next);
+		if (n instanceof IR1.Jump) {
+			int target = link.targets[pc];
+			return fr -> target;
+		}
+		if (n instanceof IR1.LabelDec) return fr -> next;
+		throw new IR1Interp.IntException("Unknown Inst: " + n);
+	}
+
+	// Binop ---
+	//
+	// The int ops that dominate loops (+, -, *, <) get a node per
+	// operand shape; everything else goes through the generic path.
+	//
+	static Node binop(IR1.BOP op, int d, int a, int b, long[] k, int next) {
+		boolean sa = a >= 0, sb = b >= 0;
+		// A constant operand is only folded into the node if it is an
+		// int; anything else is left for the generic path to report
+		boolean ka = !sa && IR1Interp.Val.tag(k[~a]) == IR1Interp.Val.INT;
+		boolean kb = !sb && IR1Interp.Val.tag(k[~b]) == IR1Interp.Val.INT;
+		if (op == IR1.AOP.ADD) {
+			if (sa && sb) return fr -> { fr[d] = ofInt(num(fr[a]) + num(fr[b])); return next; };
+			if (sa && kb) {
+				int cb = IR1Interp.Val.i(k[~b]);
+				return fr -> { fr[d] = ofInt(num(fr[a]) + cb); return next; };
+			}
+			if (ka && sb) {
+				int ca = IR1Interp.Val.i(k[~a]);
+				return fr -> { fr[d] = ofInt(ca + num(fr[b])); return next; };
+			}
+		} else if (op == IR1.AOP.SUB) {
+			if (sa && sb) return fr -> { fr[d] = ofInt(num(fr[a]) - num(fr[b])); return next; };
+			if (sa && kb) {
+				int cb = IR1Interp.Val.i(k[~b]);
+				return fr -> { fr[d] = ofInt(num(fr[a]) - cb); return next; };
+			}
+		} else if (op == IR1.AOP.MUL) {
+			if (sa && sb) return fr -> { fr[d] = ofInt(num(fr[a]) * num(fr[b])); return next; };
+			if (sa && kb) {
+				int cb = IR1Interp.Val.i(k[~b]);
+				return fr -> { fr[d] = ofInt(num(fr[a]) * cb); return next; };
+			}
+			if (ka && sb) {
+				int ca = IR1Interp.Val.i(k[~a]);
+				return fr -> { fr[d] = ofInt(ca * num(fr[b])); return next; };
+			}
+		} else if (op == IR1.ROP.LT) {
+			if (sa && sb) return fr -> { fr[d] = ofBool(num(fr[a]) < num(fr[b])); return next; };
+			if (sa && kb) {
+				int cb = IR1Interp.Val.i(k[~b]);
+				return fr -> { fr[d] = ofBool(num(fr[a]) < cb); return next; };
+			}
+		}
+		return fr -> { fr[d] = binop(op, get(fr, k, a), get(fr, k, b)); return next; };
+	}
+
+	// Unop ---
+	//
+	static Node unop(IR1.UOP op, int d, int a, long[] k, int next) {
+		if (op == IR1.UOP.NEG)
+			return fr -> { fr[d] = ofInt(-num(get(fr, k, a))); return next; };
+		return fr -> { fr[d] = ofBool(!bool(get(fr, k, a))); return next; };
+	}
+
+	// Move ---
+	//
+	static Node move(int d, int a, long[] k, int next) {
+		if (a >= 0)
+			return fr -> { fr[d] = fr[a]; return next; };
+		long c = k[~a];
+		return fr -> { fr[d] = c; return next; };
+	}
+
+	// Load/Store ---
+	//
+	static Node load(int d, int base, int offset, long[] k, int next) {
+		return fr -> { fr[d] = IR1Interp.memLoad(num(get(fr, k, base)) + offset); return next; };
+	}
+
+	static Node store(int base, int offset, int a, long[] k, int next) {
+		return fr -> { IR1Interp.memStore(num(get(fr, k, base)) + offset, get(fr, k, a)); return next; };
+	}
+
+	// Call ---
+	//
+	// The target was bound at link time; a call node just picks up the
+	// callee's compiled form.
+	//
+	static Node call(IR1Intrinsic in, IR1Interp.FuncLink target, int[] o, long[] k, int next) {
+		int rdst = o[0];
+		if (in != null)
+			return intrinsic(in, o, k, next);
+		CFunc callee = cfuncs.get(target.func.gname.s);
+		int nargs = o.length - 1;
+		return fr -> {
+			long[] cf = new long[callee.link.nslots];
+			for (int i = 0; i < nargs; i++)
+				cf[i] = get(fr, k, o[i + 1]);
+			invoke(callee, cf);
+			if (rdst != NONE)
+				fr[rdst] = IR1Interp.retVal;
+			return next;
+		};
+	}
+
+	// An intrinsic gets a node per arity, so its args go straight
+	// from the frame to the call.
+	//
+	static Node intrinsic(IR1Intrinsic in, int[] o, long[] k, int next) {
+		int rdst = o[0];
+		if (in.arity == 0) {
+			if (rdst == NONE)
+				return fr -> { in.call0(); return next; };
+			return fr -> { fr[rdst] = in.call0(); return next; };
+		}
+		int a = o[1];
+		if (in.arity == 1) {
+			if (rdst == NONE)
+				return fr -> { in.call1(get(fr, k, a)); return next; };
+			return fr -> { fr[rdst] = in.call1(get(fr, k, a)); return next; };
+		}
+		int b = o[2];
+		if (in.arity == 2) {
+			if (rdst == NONE)
+				return fr -> { in.call2(get(fr, k, a), get(fr, k, b)); return next; };
+			return fr -> { fr[rdst] = in.call2(get(fr, k, a), get(fr, k, b)); return next; };
+		}
+		int c = o[3];
+		if (rdst == NONE)
+			return fr -> { in.call3(get(fr, k, a), get(fr, k, b), get(fr, k, c)); return next; };
+		return fr -> { fr[rdst] = in.call3(get(fr, k, a), get(fr, k, b), get(fr, k, c)); return next; };
+	}
+
+	// Return ---
+	//
+	// Like the tree-walker, a bare return leaves retVal alone.
+	//
+	static Node ret(int a, long[] k) {
+		if (a == NONE)
+			return fr -> RETURN;
+		if (a >= 0)
+			return fr -> { IR1Interp.retVal = fr[a]; return RETURN; };
+		long c = k[~a];
+		return fr -> { IR1Interp.retVal = c; return RETURN; };
+	}
+
+	// CJump ---
+	//
+	// The front end's 'if tN == true/false goto L' compares a slot to a
+	// boolean constant; that and int compares on slots get their own
+	// nodes.
+	//
+	static Node cjump(IR1.ROP op, int a, int b, long[] k, int target, int next) {
+		if (a >= 0 && b < 0 && IR1Interp.Val.tag(k[~b]) == IR1Interp.Val.BOOL) {
+			long c = k[~b];
+			if (op == IR1.ROP.EQ)
+				return fr -> bool(fr[a]) == IR1Interp.Val.b(c) ? target : next;
+			if (op == IR1.ROP.NE)
+				return fr -> bool(fr[a]) != IR1Interp.Val.b(c) ? target : next;
+		}
+		if (a >= 0 && b >= 0 && op == IR1.ROP.LT)
+			return fr -> num(fr[a]) < num(fr[b]) ? target : next;
+		return fr -> compare(op, get(fr, k, a), get(fr, k, b)) ? target : next;
+	}
+
+	//-----------------------------------------------------------------
+	// Runtime Helpers
+	//-----------------------------------------------------------------
+	//
+	static long ofInt(int i) {
+		return IR1Interp.Val.ofInt(i);
+	}
+
+	static long ofBool(boolean b) {
+		return IR1Interp.Val.ofBool(b);
+	}
+
+	static long get(long[] fr, long[] k, int opnd) {
+		return opnd >= 0 ? fr[opnd] : k[~opnd];
+	}
+
+	static int num(long v) throws IR1Interp.IntException {
+		return IR1Interp.Val.num(v);
+	}
+
+	static boolean bool(long v) throws IR1Interp.IntException {
+		return IR1Interp.Val.bool(v);
+	}
+
+	static long binop(IR1.BOP op, long l, long r) throws IR1Interp.IntException {
+		if (op instanceof IR1.ROP)
+			return ofBool(compare((IR1.ROP) op, l, r));
+		switch ((IR1.AOP) op) {
+			case ADD:
+				return ofInt(num(l) + num(r));
+			case SUB:
+				return ofInt(num(l) - num(r));
+			case MUL:
+				return ofInt(num(l) * num(r));
+			case DIV:
+				return ofInt(num(l) / num(r));
+			case AND:
+				return ofBool(bool(l) && bool(r));
+			default:
+				return ofBool(bool(l) || bool(r));
+		}
+	}
+
+	// Booleans only support == and !=; everything else is on ints.
+	//
+	static boolean compare(IR1.ROP op, long l, long r) throws IR1Interp.IntException {
+		if (IR1Interp.Val.tag(l) == IR1Interp.Val.BOOL && (op == IR1.ROP.EQ || op == IR1.ROP.NE))
+			return (bool(l) == bool(r)) == (op == IR1.ROP.EQ);
+		int x = num(l), y = num(r);
+		switch (op) {
+			case EQ:
+				return x == y;
+			case NE:
+				return x != y;
+			case LT:
+				return x < y;
+			case LE:
+				return x <= y;
+			case GT:
+				return x > y;
+			default:
+				return x >= y;
+		}
+	}
+}
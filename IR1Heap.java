@@ -0,0 +1,560 @@
+// This is supporting software for CS322 Compilers and Language Design II
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+//
+// Andrew McCann
+// CS322 HW3
+// Winter 2016
+//
+
+// IR1 heap storage.
+//
+// The heap is a run of words, in use up to 'top', holding tagged values
+// (see IR1Interp.Val). Loads and stores outside [0, top) are errors.
+// IR1Heap is the interface the interpreter's memLoad/memStore/malloc
+// go through; the backends below decide how words are laid out.
+//
+// Backends keep every word at or above 'top' zeroed, which is the
+// encoding of "undefined". Since nothing can store past 'top', that
+// holds for free, and extending the heap is just a bump of 'top' (plus,
+// now and then, growing the storage).
+//
+// On top of that, this class hands out blocks. Each block is preceded
+// by a header word holding its size and FREE/MARK flags:
+//
+//   [header][payload: size words][header][payload] ... top
+//
+// so the whole heap is a sequence of blocks. _free puts a block on the
+// free list (merging it with free neighbours), and malloc takes the
+// smallest free block big enough (the lowest one, of those) before
+// extending the heap. A block taken from the free list is cleared to
+// undefined.
+//
+// With 'collecting' set, malloc also runs a mark-sweep collection every
+// so often. Marking is conservative: the roots are the interpreter's
+// frame slots (see IR1Interp.markRoots), and any int, in a root or in a
+// marked block, that points into a block (or just past its end) keeps
+// that block alive. Sweeping frees the unmarked blocks. A program that
+// stores over a block header is in error, as in C, and the allocator
+// won't notice.
+//
+// Headers, and the index of blocks, are only kept if the program can
+// free a block (it calls an intrinsic that 'frees', see IR1Intrinsic)
+// or collecting is on. Otherwise malloc is just extend, and blocks
+// sit back to back as they did before there were headers.
+//
+
+import java.nio.*;
+import java.util.*;
+
+abstract class IR1Heap {
+
+	int top;       // words in use
+
+	abstract long load(int addr) throws IR1Interp.IntException;
+
+	abstract void store(int addr, long val) throws IR1Interp.IntException;
+
+	// Add 'n' undefined words at the top and return the address of the
+	// first one.
+	//
+	abstract int extend(int n) throws IR1Interp.IntException;
+
+	// The words in [from, to) are free and will be cleared before they
+	// are handed out again; a backend may drop their storage.
+	//
+	void release(int from, int to) {
+	}
+
+	IR1Interp.IntException outOfRange(int addr) {
+		return new IR1Interp.IntException("Memory address out of range: " + addr);
+	}
+
+	// Addresses are ints, so no heap grows past Integer.MAX_VALUE words.
+	//
+	void checkLimit(int n) throws IR1Interp.IntException {
+		if (top + (long) n > Integer.MAX_VALUE)
+			throw new IR1Interp.IntException("Out of memory: " + n + " more words at " + top);
+	}
+
+	//-----------------------------------------------------------------
+	// Blocks
+	//-----------------------------------------------------------------
+	//
+	static final long FREE = 1L << 32;   // header flags, above the size
+	static final long MARK = 2L << 32;
+
+	static final int MIN_COLLECT = 1 << 20;  // words between collections
+
+	Bits blocks = new Bits();            // payload address of every block
+	TreeMap<Integer, Integer> free = new TreeMap<>();  // address -> size
+	TreeSet<Long> bySize = new TreeSet<>();  // size << 32 | address
+	int shift;                           // program address >> shift = word
+	boolean headers;                     // blocks have headers (see above)
+	boolean collecting;
+	long allocated;                      // words taken since last collection
+	long threshold = MIN_COLLECT;
+
+	// Reserve a block of 'n' undefined words and return the address of
+	// the first one.
+	//
+	int malloc(int n) throws IR1Interp.IntException {
+		n = Math.max(n, 0);
+		if (!headers)
+			return extend(n);
+		if (collecting && allocated >= threshold)
+			collect();
+		allocated += n + 1;
+		// Best fit from the free list; a big enough remainder is split
+		// off as a free block of its own
+		Long fit = bySize.ceiling((long) n << 32);
+		if (fit != null) {
+			int addr = (int) (long) fit, size = (int) (fit >>> 32);
+			unlink(addr, size);
+			if (size - n >= 2) {
+				makeFree(addr + n + 1, size - n - 1);
+				size = n;
+			}
+			store(addr - 1, size);
+			for (int a = addr; a < addr + size; a++)
+				if (load(a) != IR1Interp.Val.UND)
+					store(a, IR1Interp.Val.UND);
+			return addr;
+		}
+		int addr = extend(n + 1) + 1;
+		store(addr - 1, n);
+		blocks.set(addr);
+		return addr;
+	}
+
+	// Return the block at 'addr' to the free list.
+	//
+	void free(int addr) throws IR1Interp.IntException {
+		if (addr <= 0 || addr >= top || !blocks.get(addr) || (load(addr - 1) & FREE) != 0)
+			throw new IR1Interp.IntException("_free of an address that is not an allocated block: " + addr);
+		int size = (int) load(addr - 1);
+		// Merge with the following block, then the preceding one, if
+		// they are free
+		int next = addr + size + 1;
+		Integer nextSize = free.get(next);
+		if (nextSize != null) {
+			unlink(next, nextSize);
+			blocks.clear(next);
+			size += 1 + nextSize;
+		}
+		Map.Entry<Integer, Integer> prev = free.lowerEntry(addr);
+		if (prev != null && prev.getKey() + prev.getValue() + 1 == addr) {
+			unlink(prev.getKey(), prev.getValue());
+			blocks.clear(addr);
+			addr = prev.getKey();
+			size += 1 + prev.getValue();
+		}
+		makeFree(addr, size);
+	}
+
+	// Give blocks headers from now on; called before any malloc.
+	//
+	void keepHeaders() {
+		headers = true;
+	}
+
+	void makeFree(int addr, int size) throws IR1Interp.IntException {
+		store(addr - 1, FREE | size);
+		blocks.set(addr);
+		free.put(addr, size);
+		bySize.add((long) size << 32 | addr);
+		release(addr, addr + size);
+	}
+
+	void unlink(int addr, int size) {
+		free.remove(addr);
+		bySize.remove((long) size << 32 | addr);
+	}
+
+	// Mark every block reachable from the roots, then free the rest.
+	//
+	void collect() throws IR1Interp.IntException {
+		IntStack work = new IntStack();
+		lastEnd = -1;
+		IR1Interp.markRoots(this, work);
+		while (work.size > 0) {
+			int addr = work.pop();
+			int size = (int) load(addr - 1);
+			for (int a = addr; a < addr + size; a++)
+				mark(load(a), work);
+		}
+		// Sweep, rebuilding the free list so that each run of free
+		// blocks becomes one
+		free.clear();
+		bySize.clear();
+		long live = 0;
+		int reclaimed = 0, run = -1, runSize = 0;
+		for (int addr = blocks.nextSetBit(0); addr >= 0; addr = blocks.nextSetBit(addr + 1)) {
+			long header = load(addr - 1);
+			int size = (int) header;
+			if ((header & MARK) != 0) {
+				store(addr - 1, size);
+				live += size + 1;
+				if (run >= 0)
+					makeFree(run, runSize);
+				run = -1;
+				continue;
+			}
+			if ((header & FREE) == 0)
+				reclaimed++;
+			if (run < 0) {
+				run = addr;
+				runSize = size;
+			} else {
+				blocks.clear(addr);
+				runSize += 1 + size;
+			}
+		}
+		if (run >= 0)
+			makeFree(run, runSize);
+		allocated = 0;
+		threshold = Math.max(MIN_COLLECT, live);
+		if (IR1Interp.verbose)
+			System.err.println("[gc] freed " + reclaimed + " blocks, " + live + " words live, "
+					+ free.size() + " free blocks");
+	}
+
+	// If 'v' is an int pointing into an unmarked block, mark the block
+	// and queue it for scanning. Most ints that look like pointers are
+	// (or point near) the last one, so that block is checked first;
+	// finding another means a search back through 'blocks'.
+	//
+	int lastBlock, lastEnd = -1;
+
+	void mark(long v, IntStack work) throws IR1Interp.IntException {
+		if (IR1Interp.Val.tag(v) != IR1Interp.Val.INT)
+			return;
+		int p = IR1Interp.Val.i(v) >> shift;
+		if (p <= 0 || p > top || (p >= lastBlock && p <= lastEnd))
+			return;
+		int addr = blocks.previousSetBit(p);
+		if (addr < 0)
+			return;
+		long header = load(addr - 1);
+		lastBlock = addr;
+		lastEnd = addr + (int) header;
+		if ((header & (FREE | MARK)) != 0 || p > lastEnd)
+			return;
+		store(addr - 1, header | MARK);
+		work.push(addr);
+	}
+
+	// A set of ints, as a bitmap kept in chunks so that a heap with
+	// blocks far apart (see Paged) doesn't need a bit for every word
+	// between them. Empty chunks are dropped.
+	//
+	static final class Bits {
+		static final int CHUNK = 14;     // log2 of the bits per chunk
+		TreeMap<Integer, long[]> chunks = new TreeMap<>();
+		int lastKey = -1;                // the chunk last looked up
+		long[] last;
+
+		long[] chunk(int key) {
+			if (key != lastKey) {
+				last = chunks.get(key);
+				lastKey = key;
+			}
+			return last;
+		}
+
+		boolean get(int i) {
+			long[] c = chunk(i >>> CHUNK);
+			return c != null && (c[(i & (1 << CHUNK) - 1) >>> 6] & 1L << i) != 0;
+		}
+
+		void set(int i) {
+			long[] c = chunk(i >>> CHUNK);
+			if (c == null)
+				chunks.put(i >>> CHUNK, last = c = new long[1 << CHUNK - 6]);
+			c[(i & (1 << CHUNK) - 1) >>> 6] |= 1L << i;
+		}
+
+		void clear(int i) {
+			long[] c = chunk(i >>> CHUNK);
+			if (c == null)
+				return;
+			int w = (i & (1 << CHUNK) - 1) >>> 6;
+			c[w] &= ~(1L << i);
+			if (c[w] == 0) {
+				for (long bits : c)
+					if (bits != 0)
+						return;
+				chunks.remove(i >>> CHUNK);
+				last = null;
+			}
+		}
+
+		// The least member >= i, or -1.
+		//
+		int nextSetBit(int i) {
+			if (i < 0)
+				return -1;
+			long[] c = chunk(i >>> CHUNK);
+			if (c != null) {
+				int w = (i & (1 << CHUNK) - 1) >>> 6;
+				long bits = c[w] & -1L << i;
+				while (true) {
+					if (bits != 0)
+						return (i >>> CHUNK << CHUNK) + w * 64 + Long.numberOfTrailingZeros(bits);
+					if (++w == c.length)
+						break;
+					bits = c[w];
+				}
+			}
+			Map.Entry<Integer, long[]> e = chunks.higherEntry(i >>> CHUNK);
+			if (e == null)
+				return -1;
+			c = e.getValue();
+			for (int w = 0; ; w++)
+				if (c[w] != 0)
+					return (e.getKey() << CHUNK) + w * 64 + Long.numberOfTrailingZeros(c[w]);
+		}
+
+		// The greatest member <= i, or -1.
+		//
+		int previousSetBit(int i) {
+			if (i < 0)
+				return -1;
+			long[] c = chunk(i >>> CHUNK);
+			if (c != null) {
+				int w = (i & (1 << CHUNK) - 1) >>> 6;
+				long bits = c[w] & -1L >>> 63 - (i & 63);
+				while (true) {
+					if (bits != 0)
+						return (i >>> CHUNK << CHUNK) + w * 64 + 63 - Long.numberOfLeadingZeros(bits);
+					if (--w < 0)
+						break;
+					bits = c[w];
+				}
+			}
+			Map.Entry<Integer, long[]> e = chunks.lowerEntry(i >>> CHUNK);
+			if (e == null)
+				return -1;
+			c = e.getValue();
+			for (int w = c.length - 1; ; w--)
+				if (c[w] != 0)
+					return (e.getKey() << CHUNK) + w * 64 + 63 - Long.numberOfLeadingZeros(c[w]);
+		}
+	}
+
+	static final class IntStack {
+		int[] items = new int[64];
+		int size;
+
+		void push(int i) {
+			if (size == items.length)
+				items = Arrays.copyOf(items, size * 2);
+			items[size++] = i;
+		}
+
+		int pop() {
+			return items[--size];
+		}
+	}
+
+	//-----------------------------------------------------------------
+	// Words
+	//-----------------------------------------------------------------
+	//
+	// Byte addressing over a heap of 4-byte words. The front end sizes
+	// blocks and computes addresses in bytes (base + index * 4), so on a
+	// plain heap 3 words of every 4 are never touched. Here _malloc(n)
+	// takes n/4 words (rounded up) of the backing heap and answers a
+	// byte address, and a load or store at byte address a goes to word
+	// a/4, which must be aligned.
+	//
+	static final class Words extends IR1Heap {
+		final IR1Heap words;
+
+		Words(IR1Heap words) {
+			this.words = words;
+			words.shift = 2;
+		}
+
+		long load(int addr) throws IR1Interp.IntException {
+			return words.load(word(addr));
+		}
+
+		void store(int addr, long val) throws IR1Interp.IntException {
+			words.store(word(addr), val);
+		}
+
+		int malloc(int n) throws IR1Interp.IntException {
+			// Byte addresses have to fit in an int too
+			if (((long) words.top + ((n + 3L) >> 2) + 1) << 2 > Integer.MAX_VALUE)
+				throw new IR1Interp.IntException("Out of memory: " + n + " more bytes at " + top);
+			int pos = words.malloc((n + 3) >> 2) << 2;
+			top = words.top << 2;
+			return pos;
+		}
+
+		void free(int addr) throws IR1Interp.IntException {
+			words.free(word(addr));
+		}
+
+		void keepHeaders() {
+			words.keepHeaders();
+		}
+
+		int extend(int n) throws IR1Interp.IntException {
+			int pos = words.extend((n + 3) >> 2) << 2;
+			top = words.top << 2;
+			return pos;
+		}
+
+		int word(int addr) throws IR1Interp.IntException {
+			if ((addr & 3) != 0)
+				throw new IR1Interp.IntException("Unaligned memory address: " + addr);
+			if (addr < 0 || addr >= top)
+				throw outOfRange(addr);
+			return addr >> 2;
+		}
+	}
+
+	//-----------------------------------------------------------------
+	// Packed
+	//-----------------------------------------------------------------
+	//
+	// A word is split across two parallel arrays: its 32-bit payload in
+	// 'vals' and its tag in 'tags', 5 bytes in all. A string's payload
+	// is its index in IR1Interp.strings, so the string table doubles as
+	// the heap's side table for strings.
+	//
+	static final class Packed extends IR1Heap {
+		int[] vals = new int[1024];
+		byte[] tags = new byte[1024];
+
+		long load(int addr) throws IR1Interp.IntException {
+			if (addr < 0 || addr >= top)
+				throw outOfRange(addr);
+			return ((long) tags[addr] << 32) | (vals[addr] & 0xFFFFFFFFL);
+		}
+
+		void store(int addr, long val) throws IR1Interp.IntException {
+			if (addr < 0 || addr >= top)
+				throw outOfRange(addr);
+			tags[addr] = (byte) IR1Interp.Val.tag(val);
+			vals[addr] = (int) val;
+		}
+
+		int extend(int n) throws IR1Interp.IntException {
+			int pos = top;
+			if (n <= 0)
+				return pos;
+			checkLimit(n);
+			// Make room, doubling so the copies amortize. New space is
+			// zero-filled, i.e. undefined
+			if (top + n > vals.length) {
+				int size = Math.max(vals.length * 2, top + n);
+				vals = Arrays.copyOf(vals, size);
+				tags = Arrays.copyOf(tags, size);
+			}
+			top += n;
+			return pos;
+		}
+	}
+
+	//-----------------------------------------------------------------
+	// OffHeap
+	//-----------------------------------------------------------------
+	//
+	// Words live outside the Java heap, in direct ByteBuffers of CHUNK
+	// words each (8 bytes a word: the tagged long as is), so a large
+	// IR1 heap adds nothing for the GC to copy or scan. Chunks are added
+	// as 'top' reaches them and never move; direct buffers come zeroed.
+	//
+	static final class OffHeap extends IR1Heap {
+		static final int CHUNK_BITS = 20;              // 1M words, 8MB
+		static final int CHUNK = 1 << CHUNK_BITS;
+
+		ByteBuffer[] chunks = new ByteBuffer[0];
+
+		long load(int addr) throws IR1Interp.IntException {
+			if (addr < 0 || addr >= top)
+				throw outOfRange(addr);
+			return chunks[addr >>> CHUNK_BITS].getLong((addr & (CHUNK - 1)) << 3);
+		}
+
+		void store(int addr, long val) throws IR1Interp.IntException {
+			if (addr < 0 || addr >= top)
+				throw outOfRange(addr);
+			chunks[addr >>> CHUNK_BITS].putLong((addr & (CHUNK - 1)) << 3, val);
+		}
+
+		int extend(int n) throws IR1Interp.IntException {
+			int pos = top;
+			if (n <= 0)
+				return pos;
+			checkLimit(n);
+			int need = (int) ((top + (long) n + CHUNK - 1) >>> CHUNK_BITS);
+			if (need > chunks.length) {
+				int have = chunks.length;
+				chunks = Arrays.copyOf(chunks, need);
+				for (int c = have; c < need; c++)
+					chunks[c] = ByteBuffer.allocateDirect(CHUNK << 3).order(ByteOrder.nativeOrder());
+			}
+			top += n;
+			return pos;
+		}
+	}
+
+	//-----------------------------------------------------------------
+	// Paged
+	//-----------------------------------------------------------------
+	//
+	// The heap is cut into pages of PAGE words, found through a page
+	// table. A page is only allocated by the first store to it; loads
+	// from a page that was never stored to answer undefined. extend
+	// only lengthens the page table, and growing that copies one
+	// reference per page rather than the words themselves, so a huge,
+	// sparsely used array costs little more than the pages it touches.
+	// Pages wholly inside a freed block are dropped again.
+	//
+	static final class Paged extends IR1Heap {
+		static final int PAGE_BITS = 12;               // 4K words
+		static final int PAGE = 1 << PAGE_BITS;
+
+		long[][] pages = new long[16][];
+
+		long load(int addr) throws IR1Interp.IntException {
+			if (addr < 0 || addr >= top)
+				throw outOfRange(addr);
+			long[] page = pages[addr >>> PAGE_BITS];
+			return page == null ? IR1Interp.Val.UND : page[addr & (PAGE - 1)];
+		}
+
+		void store(int addr, long val) throws IR1Interp.IntException {
+			if (addr < 0 || addr >= top)
+				throw outOfRange(addr);
+			long[] page = pages[addr >>> PAGE_BITS];
+			if (page == null)
+				page = pages[addr >>> PAGE_BITS] = new long[PAGE];
+			page[addr & (PAGE - 1)] = val;
+		}
+
+		int extend(int n) throws IR1Interp.IntException {
+			int pos = top;
+			if (n <= 0)
+				return pos;
+			checkLimit(n);
+			int need = (int) ((top + (long) n + PAGE - 1) >>> PAGE_BITS);
+			if (need > pages.length)
+				pages = Arrays.copyOf(pages, Math.max(pages.length * 2, need));
+			top += n;
+			return pos;
+		}
+
+		// Drop the pages that lie wholly inside [from, to)
+		void release(int from, int to) {
+			for (int p = (from + PAGE - 1) >>> PAGE_BITS; ((long) p + 1) << PAGE_BITS <= to; p++)
+				pages[p] = null;
+		}
+	}
+}
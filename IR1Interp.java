@@ -15,8 +15,8 @@
 
 import java.util.*;
 import java.io.*;
+import java.lang.invoke.MethodHandle;
 
-import com.sun.org.apache.xpath.internal.operations.Bool;
 import ir.*;
 
 public class IR1Interp {
@@ -31,57 +31,89 @@ public class IR1Interp {
 	// Value Representation
 	//-----------------------------------------------------------------
 	//
-	abstract static class Val {
-	}
-
-	// -- Integer values
+	// A value is a single unboxed long: the type tag sits in the high
+	// 32 bits and the payload in the low 32 bits. Ints and booleans are
+	// stored directly; a string's payload is its index in the string
+	// table, so strings are the only values kept as references.
+	//
+	// UND is 0, so a zero-filled frame or memory word reads as the
+	// special "undefined" value.
 	//
-	static class IntVal extends Val {
-		int i;
+	static final class Val {
+		static final int UND = 0;
+		static final int INT = 1;
+		static final int BOOL = 2;
+		static final int STR = 3;
 
-		IntVal(int i) {
-			this.i = i;
+		static final long TRUE = ofBool(true);
+		static final long FALSE = ofBool(false);
+
+		static long ofInt(int i) {
+			return ((long) INT << 32) | (i & 0xFFFFFFFFL);
 		}
 
-		public String toString() {
-			return "" + i;
+		static long ofBool(boolean b) {
+			return ((long) BOOL << 32) | (b ? 1 : 0);
 		}
-	}
 
-	// -- Boolean values
-	//
-	static class BoolVal extends Val {
-		boolean b;
+		static long ofStr(int idx) {
+			return ((long) STR << 32) | (idx & 0xFFFFFFFFL);
+		}
 
-		BoolVal(boolean b) {
-			this.b = b;
+		static int tag(long v) {
+			return (int) (v >>> 32);
 		}
 
-		public String toString() {
-			return "" + b;
+		// Payload accessors; the caller has checked the tag
+		static int i(long v) {
+			return (int) v;
 		}
-	}
 
-	// -- String values
-	//
-	static class StrVal extends Val {
-		String s;
+		static boolean b(long v) {
+			return (int) v != 0;
+		}
 
-		StrVal(String s) {
-			this.s = s;
+		// Checked accessors, for engines that don't test tags first
+		static int num(long v) throws IntException {
+			if (tag(v) != INT)
+				throw new IntException("Not an int: " + toString(v));
+			return (int) v;
 		}
 
-		public String toString() {
-			return s;
+		static boolean bool(long v) throws IntException {
+			if (tag(v) != BOOL)
+				throw new IntException("Not a boolean: " + toString(v));
+			return (int) v != 0;
+		}
+
+		static String toString(long v) {
+			switch (tag(v)) {
+				case INT:
+					return "" + (int) v;
+				case BOOL:
+					return "" + b(v);
+				case STR:
+					return strings.get((int) v);
+				default:
+					return "UndVal";
+			}
 		}
 	}
 
-	// -- A special "undefined" value
+	// -- String table: every distinct string literal, interned at
+	//    link time
 	//
-	static class UndVal extends Val {
-		public String toString() {
-			return "UndVal";
+	static ArrayList<String> strings;
+	static HashMap<String, Integer> stringIds;
+
+	static long internStr(String s) {
+		Integer idx = stringIds.get(s);
+		if (idx == null) {
+			idx = strings.size();
+			strings.add(s);
+			stringIds.put(s, idx);
 		}
+		return Val.ofStr(idx);
 	}
 
 	//-----------------------------------------------------------------
@@ -90,17 +122,108 @@ public class IR1Interp {
 	//
 
 	// -- Global heap memory
+	//    (tagged values, in use up to heap.top; see IR1Heap)
 	//
-	static ArrayList<Val> memory;
+	static IR1Heap heap;
+	static boolean wordAddressed = false;
 
-	// -- Environment for tracking var, temp, and param's values
-	//    (one copy per function invocation)
+	// -- Heap backend, picked on the command line
 	//
-	static class Env extends HashMap<String, Val> {
+	static final int PACKED = 0;     // IR1Heap.Packed
+	static final int OFFHEAP = 1;    // IR1Heap.OffHeap
+	static final int PAGED = 2;      // IR1Heap.Paged
+	static int heapKind = PACKED;
+
+	// -- Collect unreachable blocks (-gc; tree-walker and -vm only)
+	//
+	static boolean collecting = false;
+
+	static IR1Heap newHeap() {
+		IR1Heap h;
+		if (heapKind == OFFHEAP)
+			h = new IR1Heap.OffHeap();
+		else if (heapKind == PAGED)
+			h = new IR1Heap.Paged();
+		else
+			h = new IR1Heap.Packed();
+		h.collecting = h.headers = collecting;
+		return wordAddressed ? new IR1Heap.Words(h) : h;
 	}
 
-	// Used to create the memory allocation that IR1 necessitates
-	static Val undVal = new UndVal();
+	static long memLoad(int addr) throws IntException {
+		return heap.load(addr);
+	}
+
+	static void memStore(int addr, long val) throws IntException {
+		heap.store(addr, val);
+	}
+
+	// Reserve a block of 'memSize' words and return the location of
+	// the first one.
+	//
+	static int malloc(int memSize) throws IntException {
+		return heap.malloc(memSize);
+	}
+
+	// Mark the blocks the running program can reach directly, for a
+	// collection: the live part of the value stack (or of the VM's)
+	// and retVal.
+	//
+	static void markRoots(IR1Heap h, IR1Heap.IntStack work) throws IntException {
+		h.mark(retVal, work);
+		if (engine == VM) {
+			IR1VM.markRoots(h, work);
+			return;
+		}
+		for (int i = 0; i < sp; i++)
+			h.mark(stack[i], work);
+	}
+
+	// -- Value stack for var, temp, and param's values
+	//
+	//    Each function invocation owns a window of 'stack' starting at
+	//    its frame pointer, indexed by the slot numbers the link step
+	//    assigned to each Id and Temp of the function. A callee's
+	//    window starts at 'sp'; returning just moves 'sp' back.
+	//
+	static long[] stack;
+	static int sp;
+
+	// Open a window for 'link' at the top of the stack, all undefined,
+	// and return its frame pointer.
+	//
+	static int pushFrame(FuncLink link) {
+		int fp = sp;
+		if (fp + link.nslots > stack.length)
+			stack = Arrays.copyOf(stack, Math.max(stack.length * 2, fp + link.nslots));
+		Arrays.fill(stack, fp, fp + link.nslots, Val.UND);
+		sp = fp + link.nslots;
+		return fp;
+	}
+
+	// -- Environment for the running function
+	//
+	//    'fp' locates its window on the value stack, and 'pc' is the
+	//    index of the inst being executed, so the execute() routines
+	//    can find their pre-resolved operands. One Env serves the
+	//    whole run: a call points it at the callee and puts it back
+	//    afterwards.
+	//
+	static class Env {
+		FuncLink link;
+		int fp;
+		int pc;
+
+		Env(FuncLink link, int fp) {
+			this.link = link;
+			this.fp = fp;
+		}
+
+		// Operand encodings for the current inst
+		int[] opnds() {
+			return link.opnds[pc];
+		}
+	}
 
 
 	//-----------------------------------------------------------------
@@ -112,32 +235,334 @@ public class IR1Interp {
 	//  functions and labels, or searching functions.
 	//
 
+	// -- Execution engine, picked on the command line
+	//
+	static final int INTERP = 0;     // tree-walker below
+	static final int CLOSURE = 1;    // IR1Closure
+	static final int JIT = 2;        // IR1Jit
+	static final int TIERED = 3;     // tree-walker, hot functions IR1Jit
+	static final int VM = 4;         // IR1VM
+	static int engine = INTERP;
+
+	// -- Tiered execution: a function is promoted to IR1Jit once its
+	//    call count or its loop back-edge count reaches the threshold
+	//
+	static int tierThreshold = 1000;
+	static long startTime;
+
+	// -- Calls and taken jumps per IR1VM.Machine.run slice (-slice=N)
+	//
+	static long slice = Long.MAX_VALUE;
+
+	// -- Run the IR1Opt passes before linking (off with -O0)
+	//
+	static boolean optimize = true;
+
+	// -- Report what the optimizer did on stderr (-v)
+	//
+	static boolean verbose = false;
+
 	// -- Useful global variables
 	//
 	static final int CONTINUE = -1;  // execution status
 	static final int RETURN = -2;    // execution status
-	static Val retVal = null;             // for return value passing
+	static final int TAILCALL = -3;  // execution status: env now holds
+	                                 // the callee's frame
+	static long retVal = Val.UND;    // for return value passing
 
 	// Structure to track function code block info
-	static HashMap<String, IR1.Func> funcMap;
+	static HashMap<String, FuncLink> funcMap;
+
+
+	//-----------------------------------------------------------------
+	// Linking
+	//-----------------------------------------------------------------
+	//
+	// Before a program runs, every Id and Temp in a function is given
+	// a dense slot number, and every literal is placed in a per-function
+	// constant pool. Each inst's operands are recorded as ints:
+	//
+	//   opnd >= 0   -- frame slot
+	//   opnd <  0   -- constant pool index ~opnd
+	//   NONE        -- operand is absent (e.g. no rdst, bare return)
+	//
+	// Operand layouts per inst kind:
+	//   Binop {dst, src1, src2}   Unop/Move {dst, src}
+	//   Load  {dst, base}         Store {base, src}
+	//   Call  {rdst, args...}     Return {val}
+	//   CJump {src1, src2}        Jump/LabelDec {}
+	//
+	// Labels are resolved per function: targets[i] holds the index a
+	// taken Jump/CJump at i continues from (just past its LabelDec).
+	//
+	// Once every function is linked, each Call is bound to its target:
+	// callees[i] is the callee's FuncLink, or intrinsics[i] is the
+	// IR1Intrinsic called. Nothing looks at a Call's name after that.
+	// tail[i] marks a call to a function whose result is returned as
+	// is, which can reuse the caller's frame.
+	//
+	static final int NONE = Integer.MIN_VALUE;
+
+	static class FuncLink {
+		final IR1.Func func;
+		int nslots;
+		int[][] opnds;
+		long[] consts;
+		int[] targets;
+		FuncLink[] callees;
+		IR1Intrinsic[] intrinsics;
+		boolean[] tail;
+
+		// Tiered execution state
+		int calls, backedges;
+		MethodHandle compiled;       // IR1Jit '$osr' entry, once promoted
+		boolean tierFailed;
+
+		FuncLink(IR1.Func func) {
+			this.func = func;
+		}
+	}
+
+	// Slot numbers by variable. Id and Temp both define equals/hashCode,
+	// so this map is only consulted while linking, never while running.
+	// 'count' is the frame size so far; slots may be shared once IR1Opt
+	// has allocated them.
+	//
+	static class SlotMap extends HashMap<IR1.Src, Integer> {
+		int count;
+	}
+
+	static FuncLink link(IR1.Func f) throws Exception {
+		FuncLink link = new FuncLink(f);
+		// Let IR1Opt pack variables with disjoint live ranges into
+		// shared slots; anything it doesn't place gets a slot of its own
+		SlotMap slots = optimize ? IR1Opt.allocateSlots(f) : new SlotMap();
+		ArrayList<Long> consts = new ArrayList<>();
+
+		// Params go first, so a caller can fill slots 0..n-1 directly
+		for (IR1.Id p : f.params)
+			slotOf(p, slots);
+		for (IR1.Id v : f.locals)
+			slotOf(v, slots);
+
+		link.opnds = new int[f.code.length][];
+		for (int i = 0; i < f.code.length; i++) {
+			IR1.Inst n = f.code[i];
+			int[] o;
+			if (n instanceof IR1.Binop) {
+				IR1.Binop b = (IR1.Binop) n;
+				o = new int[]{slotOf(b.dst, slots), opnd(b.src1, slots, consts), opnd(b.src2, slots, consts)};
+			} else if (n instanceof IR1.Unop) {
+				IR1.Unop u = (IR1.Unop) n;
+				o = new int[]{slotOf(u.dst, slots), opnd(u.src, slots, consts)};
+			} else if (n instanceof IR1.Move) {
+				IR1.Move m = (IR1.Move) n;
+				o = new int[]{slotOf(m.dst, slots), opnd(m.src, slots, consts)};
+			} else if (n instanceof IR1.Load) {
+				IR1.Load l = (IR1.Load) n;
+				o = new int[]{slotOf(l.dst, slots), opnd(l.addr.base, slots, consts)};
+			} else if (n instanceof IR1.Store) {
+				IR1.Store s = (IR1.Store) n;
+				o = new int[]{opnd(s.addr.base, slots, consts), opnd(s.src, slots, consts)};
+			} else if (n instanceof IR1.Call) {
+				IR1.Call c = (IR1.Call) n;
+				o = new int[c.args.length + 1];
+				o[0] = c.rdst == null ? NONE : slotOf(c.rdst, slots);
+				for (int k = 0; k < c.args.length; k++)
+					o[k + 1] = opnd(c.args[k], slots, consts);
+			} else if (n instanceof IR1.Return) {
+				IR1.Return r = (IR1.Return) n;
+				o = new int[]{r.val == null ? NONE : opnd(r.val, slots, consts)};
+			} else if (n instanceof IR1.CJump) {
+				IR1.CJump j = (IR1.CJump) n;
+				o = new int[]{opnd(j.src1, slots, consts), opnd(j.src2, slots, consts)};
+			} else {
+				o = new int[0];
+			}
+			link.opnds[i] = o;
+		}
+		link.targets = resolveLabels(f);
+		link.nslots = slots.count;
+		link.consts = new long[consts.size()];
+		for (int i = 0; i < link.consts.length; i++)
+			link.consts[i] = consts.get(i);
+		return link;
+	}
 
-	// Structure to track location of labeldecs
-	static class LabMap extends HashMap<String, Integer> {
+	// Bind every Call in a linked function, checking that the callee
+	// exists and gets as many args as it has params.
+	//
+	static void bind(FuncLink link) throws Exception {
+		IR1.Inst[] code = link.func.code;
+		link.callees = new FuncLink[code.length];
+		link.intrinsics = new IR1Intrinsic[code.length];
+		link.tail = new boolean[code.length];
+		for (int i = 0; i < code.length; i++) {
+			if (!(code[i] instanceof IR1.Call))
+				continue;
+			IR1.Call c = (IR1.Call) code[i];
+			String name = c.gname.s;
+			int nparams;
+			// No function in the program has an intrinsic's name
+			link.intrinsics[i] = IR1Intrinsic.lookup(name);
+			if (link.intrinsics[i] != null) {
+				nparams = link.intrinsics[i].arity;
+				if (link.intrinsics[i].frees)
+					heap.keepHeaders();
+			} else {
+				link.callees[i] = funcMap.get(name);
+				if (link.callees[i] == null)
+					throw new IntException("In " + link.func.gname + ": call to undefined function " + name);
+				nparams = link.callees[i].func.params.length;
+			}
+			if (c.args.length != nparams)
+				throw new IntException("In " + link.func.gname + ": " + name + " takes " + nparams
+						+ " args, called with " + c.args.length);
+			link.tail[i] = link.callees[i] != null && isTail(code, i);
+		}
 	}
 
-	// Map of label locations
-	static HashMap<String, LabMap> labelMap;
+	// Is the Call at i followed by nothing but a return of its result?
+	// A bare return (or falling off the end) leaves retVal as the
+	// callee set it, so that counts too.
+	//
+	static boolean isTail(IR1.Inst[] code, int i) {
+		IR1.Dest rdst = ((IR1.Call) code[i]).rdst;
+		int j = i + 1;
+		while (j < code.length && code[j] instanceof IR1.LabelDec)
+			j++;
+		if (j == code.length)
+			return true;
+		if (!(code[j] instanceof IR1.Return))
+			return false;
+		IR1.Src val = ((IR1.Return) code[j]).val;
+		return val == null || rdst != null && val.equals(rdst);
+	}
+
+	// Map each Jump/CJump in a function to the index of the inst that
+	// follows its target LabelDec.
+	//
+	static int[] resolveLabels(IR1.Func f) throws Exception {
+		// Structure to track location of labeldecs
+		HashMap<String, Integer> labels = new HashMap<>();
+		for (int i = 0; i < f.code.length; i++) {
+			if (f.code[i] instanceof IR1.LabelDec)
+				labels.put(((IR1.LabelDec) f.code[i]).lab.name, i + 1);
+		}
+		int[] targets = new int[f.code.length];
+		for (int i = 0; i < f.code.length; i++) {
+			IR1.Label lab = null;
+			if (f.code[i] instanceof IR1.Jump)
+				lab = ((IR1.Jump) f.code[i]).lab;
+			else if (f.code[i] instanceof IR1.CJump)
+				lab = ((IR1.CJump) f.code[i]).lab;
+			if (lab == null)
+				continue;
+			Integer target = labels.get(lab.name);
+			if (target == null)
+				throw new IntException("Undefined label " + lab + " in " + f.gname);
+			targets[i] = target;
+		}
+		return targets;
+	}
+
+	// Find (or assign) the frame slot of an Id or Temp.
+	//
+	static int slotOf(Object n, SlotMap slots) throws Exception {
+		if (!(n instanceof IR1.Id) && !(n instanceof IR1.Temp))
+			throw new IntException("Not a variable: " + n);
+		Integer slot = slots.get(n);
+		if (slot == null) {
+			slot = slots.count++;
+			slots.put((IR1.Src) n, slot);
+		}
+		return slot;
+	}
+
+	// Encode a Src operand as a slot or a constant pool reference.
+	//
+	static int opnd(IR1.Src n, SlotMap slots, ArrayList<Long> consts) throws Exception {
+		long val;
+		if (n instanceof IR1.IntLit) val = Val.ofInt(((IR1.IntLit) n).i);
+		else if (n instanceof IR1.BoolLit) val = Val.ofBool(((IR1.BoolLit) n).b);
+		else if (n instanceof IR1.StrLit) val = internStr(((IR1.StrLit) n).s);
+		else return slotOf(n, slots);
+		consts.add(val);
+		return ~(consts.size() - 1);
+	}
 
 
 	//-----------------------------------------------------------------
 	// The Main Method
 	//-----------------------------------------------------------------
 	//
+	// Usage: java IR1Interp [-closure | -vm | -slice=N | -jit | -tiered | -tier=N]
+	//                       [-words] [-offheap | -paged] [-gc] [-O0] [-v]
+	//                       <file.ir>
+	//
+	//  -closure   run on the closure-compiled engine (IR1Closure)
+	//             instead of the tree-walker
+	//  -vm        lower to int[] bytecode and run it on IR1VM
+	//  -slice=N   same, suspending and resuming the VM every N calls
+	//             and taken jumps
+	//  -jit       compile to JVM bytecode and run that (IR1Jit)
+	//  -tiered    start in the tree-walker and promote hot functions
+	//             to IR1Jit; promotions are reported on stderr
+	//  -tier=N    same, with a promotion threshold of N (default 1000)
+	//  -words     byte-addressed heap over 4-byte words (IR1Heap.Words):
+	//             _malloc(n) takes n/4 words, and addresses must be
+	//             multiples of 4
+	//  -offheap   keep the heap in direct buffers outside the Java heap
+	//             (IR1Heap.OffHeap)
+	//  -paged     keep the heap in pages allocated on first store
+	//             (IR1Heap.Paged)
+	//  -gc        collect unreachable heap blocks (tree-walker and -vm;
+	//             ignored, with a warning, by the other engines)
+	//  -O0        skip the IR1Opt passes
+	//  -v         report what the IR1Opt passes did on stderr
+	//
 	public static void main(String[] args) throws Exception {
-		if (args.length == 1) {
-			FileInputStream stream = new FileInputStream(args[0]);
+		String file = null;
+		for (String arg : args) {
+			if (arg.equals("-closure")) {
+				engine = CLOSURE;
+			} else if (arg.equals("-vm")) {
+				engine = VM;
+			} else if (arg.equals("-jit")) {
+				engine = JIT;
+			} else if (arg.equals("-tiered")) {
+				engine = TIERED;
+			} else if (arg.equals("-words")) {
+				wordAddressed = true;
+			} else if (arg.equals("-offheap")) {
+				heapKind = OFFHEAP;
+			} else if (arg.equals("-paged")) {
+				heapKind = PAGED;
+			} else if (arg.equals("-gc")) {
+				collecting = true;
+			} else if (arg.equals("-O0")) {
+				optimize = false;
+			} else if (arg.equals("-v")) {
+				verbose = true;
+			} else if (arg.startsWith("-slice=")) {
+				engine = VM;
+				slice = Long.parseLong(arg.substring(7));
+			} else if (arg.startsWith("-tier=")) {
+				engine = TIERED;
+				tierThreshold = Integer.parseInt(arg.substring(6));
+			} else if (arg.startsWith("-") || file != null) {
+				System.out.println("Unknown option: " + arg);
+				return;
+			} else {
+				file = arg;
+			}
+		}
+		if (file != null) {
+			FileInputStream stream = new FileInputStream(file);
 			IR1.Program p = new IR1Parser(stream).Program();
 			stream.close();
+			if (optimize)
+				p = IR1Opt.optimize(p);
 			IR1Interp.execute(p);
 		} else {
 			System.out.println("You must provide an input file name.");
@@ -160,30 +585,35 @@ public class IR1Interp {
 	public static void execute(IR1.Program n) throws Exception {
 		// Init all the global tracking structures.
 		funcMap = new HashMap<>();
-		labelMap = new HashMap<>();
-		Env env = new Env();
-		memory = new ArrayList<>();
-		retVal = new UndVal();
-
-		// Variable to track lines of execution per func
-		int count;
+		if (collecting && engine != INTERP && engine != VM) {
+			System.err.println("-gc: frames of this engine can't be scanned, not collecting");
+			collecting = false;
+		}
+		heap = newHeap();
+		stack = new long[1024];
+		sp = 0;
+		strings = new ArrayList<>();
+		stringIds = new HashMap<>();
+		retVal = Val.UND;
+		startTime = System.nanoTime();
 
 		for (IR1.Func f : n.funcs) {
-			funcMap.put(f.gname.s, f);
-			labelMap.put(f.gname.s, new LabMap());
-			count = 0;
-
-			for (IR1.Inst i : f.code) {
-				if (i instanceof IR1.LabelDec) {
-					LabMap funcLabel = labelMap.get(f.gname.s);
-					// Insert the location in the LabMap for this function.
-					funcLabel.put(((IR1.LabelDec) i).lab.name, count);
-				}
-				// Incremement every inst
-				count++;
-			}
+			// A call to the name would go to the intrinsic
+			if (IR1Intrinsic.lookup(f.gname.s) != null)
+				throw new IntException("Function " + f.gname + " has the name of an intrinsic");
+			funcMap.put(f.gname.s, link(f));
 		}
-		execute(funcMap.get("_main"), env);
+		for (FuncLink link : funcMap.values())
+			bind(link);
+		FuncLink main = funcMap.get("_main");
+		if (engine == CLOSURE)
+			IR1Closure.run(main);
+		else if (engine == JIT)
+			IR1Jit.run(main);
+		else if (engine == VM)
+			IR1VM.run(main);
+		else
+			execute(main.func, new Env(main, pushFrame(main)));
 	}
 
 	// Func ---
@@ -197,16 +627,81 @@ public class IR1Interp {
 	//  - The parameter 'env' is the function's initial Env, which
 	//    contains its parameters' values.
 	//
+	// In tiered mode this also counts calls and taken back-edges, and
+	// hands the frame over to compiled code once the function has been
+	// promoted -- at entry, or mid-loop at a back-edge.
+	//
+	// A tail call leaves the callee's frame in 'env' and starts over
+	// here, rather than recursing.
+	//
 	static void execute(IR1.Func n, Env env) throws Exception {
-		int idx = 0;
-		while (idx < n.code.length) {
-			int next = execute(n.code[idx], env);
-			if (next == CONTINUE)
-				idx++;
-			else if (next == RETURN)
-				break;
-			else
-				idx = next;
+		for (;;) {
+			FuncLink link = env.link;
+			if (engine == TIERED) {
+				if (link.compiled == null && ++link.calls == tierThreshold)
+					promote(link);
+				if (link.compiled != null) {
+					retVal = enter(link, env, 0);
+					return;
+				}
+			}
+			int idx = 0;
+			while (idx < n.code.length) {
+				env.pc = idx;
+				int next = execute(n.code[idx], env);
+				if (next == CONTINUE)
+					idx++;
+				else if (next == RETURN)
+					return;
+				else if (next == TAILCALL)
+					break;
+				else {
+					if (engine == TIERED && next <= idx) {
+						if (link.compiled == null && ++link.backedges == tierThreshold)
+							promote(link);
+						if (link.compiled != null) {
+							retVal = enter(link, env, next);
+							return;
+						}
+					}
+					idx = next;
+				}
+			}
+			if (idx >= n.code.length)
+				return;
+			n = env.link.func;
+		}
+	}
+
+	// Compile a hot function with IR1Jit and report it. A function
+	// that fails to compile stays in the tree-walker.
+	//
+	static void promote(FuncLink link) {
+		if (link.tierFailed)
+			return;
+		long t0 = System.nanoTime();
+		try {
+			link.compiled = IR1Jit.promote(link);
+		} catch (Exception e) {
+			link.tierFailed = true;
+			System.err.println("[tier] " + link.func.gname + " not promoted: " + e.getMessage());
+			return;
+		}
+		System.err.printf("[tier] %s promoted at %.1f ms (%d calls, %d back-edges, compiled in %.1f ms)%n",
+				link.func.gname, (t0 - startTime) / 1e6, link.calls, link.backedges,
+				(System.nanoTime() - t0) / 1e6);
+	}
+
+	// Run a promoted function on the running window from 'pc' and
+	// answer its return value.
+	//
+	static long enter(FuncLink link, Env env, int pc) throws Exception {
+		try {
+			return (long) link.compiled.invokeExact(stack, env.fp, pc);
+		} catch (Exception | Error e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new RuntimeException(t);
 		}
 	}
 
@@ -244,77 +739,78 @@ public class IR1Interp {
 	//
 	static int execute(IR1.Binop n, Env env) throws Exception {
 		// Get the result of evalute from each side of the Binop
-		Val leftVal = evaluate(n.src1, env);
-		Val rightVal = evaluate(n.src2, env);
-		Val result = null;
+		int[] o = env.opnds();
+		long leftVal = evaluate(o[1], env);
+		long rightVal = evaluate(o[2], env);
+		long result = Val.UND;
 
 		// Execution sequence if Arithmetic Operand
 		if (n.op instanceof IR1.AOP) {
 			// If left and right are both Booleans
-			if (leftVal instanceof BoolVal && rightVal instanceof BoolVal) {
-				boolean leftBool = ((BoolVal) leftVal).b;
-				boolean rightBool = ((BoolVal) rightVal).b;
+			if (Val.tag(leftVal) == Val.BOOL && Val.tag(rightVal) == Val.BOOL) {
+				boolean leftBool = Val.b(leftVal);
+				boolean rightBool = Val.b(rightVal);
 
 				// Operator is &&
 				if (n.op == IR1.AOP.AND) {
-					result = new BoolVal(leftBool && rightBool);
+					result = Val.ofBool(leftBool && rightBool);
 				}
 				// Operator is ||
 				else {
-					result = new BoolVal(leftBool || rightBool);
+					result = Val.ofBool(leftBool || rightBool);
 				}
 			} // If left and right and int values
-			else if (leftVal instanceof IntVal && rightVal instanceof IntVal) {
-				int leftInt = ((IntVal) leftVal).i;
-				int rightInt = ((IntVal) rightVal).i;
+			else if (Val.tag(leftVal) == Val.INT && Val.tag(rightVal) == Val.INT) {
+				int leftInt = Val.i(leftVal);
+				int rightInt = Val.i(rightVal);
 
 				// Switch based on what type of operand we see.
 				switch ((IR1.AOP) n.op) {
 					case ADD:
-						result = new IntVal(leftInt + rightInt);
+						result = Val.ofInt(leftInt + rightInt);
 						break;
 					case SUB:
-						result = new IntVal(leftInt - rightInt);
+						result = Val.ofInt(leftInt - rightInt);
 						break;
 					case MUL:
-						result = new IntVal(leftInt * rightInt);
+						result = Val.ofInt(leftInt * rightInt);
 						break;
 					case DIV:
-						result = new IntVal(leftInt / rightInt);
+						result = Val.ofInt(leftInt / rightInt);
 						break;
 				}
 			}
 		}  // Otherwise we must have a Relational Operand
 		else if (n.op instanceof IR1.ROP) {
 			// Check what type of values we have
-			if (leftVal instanceof IntVal && rightVal instanceof IntVal) {
-				int leftInt = ((IntVal) leftVal).i;
-				int rightInt = ((IntVal) rightVal).i;
+			if (Val.tag(leftVal) == Val.INT && Val.tag(rightVal) == Val.INT) {
+				int leftInt = Val.i(leftVal);
+				int rightInt = Val.i(rightVal);
 
 				switch ((IR1.ROP) n.op) {
 					case GE:
-						result = new BoolVal(leftInt >= rightInt);
+						result = Val.ofBool(leftInt >= rightInt);
 						break;
 					case GT:
-						result = new BoolVal(leftInt > rightInt);
+						result = Val.ofBool(leftInt > rightInt);
 						break;
 					case LE:
-						result = new BoolVal(leftInt <= rightInt);
+						result = Val.ofBool(leftInt <= rightInt);
 						break;
 					case LT:
-						result = new BoolVal(leftInt < rightInt);
+						result = Val.ofBool(leftInt < rightInt);
 						break;
 					case EQ:
-						result = new BoolVal(leftInt == rightInt);
+						result = Val.ofBool(leftInt == rightInt);
 						break;
 					case NE:
-						result = new BoolVal(leftInt != rightInt);
+						result = Val.ofBool(leftInt != rightInt);
 						break;
 				}
 			}
 		}
 		// Save value into the dst within the env
-		env.put(n.dst.toString(), result);
+		stack[env.fp + o[0]] = result;
 		return CONTINUE;
 	}
 
@@ -329,16 +825,17 @@ public class IR1Interp {
 	// 2. Update 'dst's entry in the Env with operation's result.
 	//
 	static int execute(IR1.Unop n, Env env) throws Exception {
-		Val srcVal = evaluate(n.src, env);
-		Val result = null;
+		int[] o = env.opnds();
+		long srcVal = evaluate(o[1], env);
+		long result;
 
 		// Boolean
-		if (srcVal instanceof BoolVal) {
-			result = new BoolVal(!(((BoolVal) srcVal).b));
+		if (Val.tag(srcVal) == Val.BOOL) {
+			result = Val.ofBool(!Val.b(srcVal));
 		} else { // Int
-			result = new IntVal(-((IntVal) srcVal).i);
+			result = Val.ofInt(-Val.i(srcVal));
 		}
-		env.put(n.dst.toString(), result);
+		stack[env.fp + o[0]] = result;
 		return CONTINUE;
 	}
 
@@ -350,7 +847,8 @@ public class IR1Interp {
 	//  Evaluate 'src', then update 'dst's entry in the Env.
 	//
 	static int execute(IR1.Move n, Env env) throws Exception {
-		env.put(n.dst.toString(), evaluate(n.src, env));
+		int[] o = env.opnds();
+		stack[env.fp + o[0]] = evaluate(o[1], env);
 		return CONTINUE;
 	}
 
@@ -363,7 +861,8 @@ public class IR1Interp {
 	//  value from memory and update 'dst's entry in the Env.
 	//
 	static int execute(IR1.Load n, Env env) throws Exception {
-		env.put(n.dst.toString(), memory.get(evaluate(n.addr, env)));
+		int[] o = env.opnds();
+		stack[env.fp + o[0]] = memLoad(evaluate(n.addr, o[1], env));
 		return CONTINUE;
 	}
 
@@ -377,7 +876,8 @@ public class IR1Interp {
 	//    to the memory entry.
 	//
 	static int execute(IR1.Store n, Env env) throws Exception {
-		memory.set(evaluate(n.addr, env), evaluate(n.src, env));
+		int[] o = env.opnds();
+		memStore(evaluate(n.addr, o[0], env), evaluate(o[1], env));
 		return CONTINUE;
 	}
 
@@ -395,14 +895,15 @@ public class IR1Interp {
 		// Pretty much a duplicate of what I checked in BINOP
 		//
 		// Eval the src's so we can check types
-		Val leftVal = evaluate(n.src1, env);
-		Val rightVal = evaluate(n.src2, env);
+		int[] o = env.opnds();
+		long leftVal = evaluate(o[0], env);
+		long rightVal = evaluate(o[1], env);
 		boolean result;
 
 		// If Boolean
-		if (leftVal instanceof BoolVal && rightVal instanceof BoolVal) {
-			boolean leftBool = ((BoolVal) leftVal).b;
-			boolean rightBool = ((BoolVal) rightVal).b;
+		if (Val.tag(leftVal) == Val.BOOL && Val.tag(rightVal) == Val.BOOL) {
+			boolean leftBool = Val.b(leftVal);
+			boolean rightBool = Val.b(rightVal);
 
 			if (n.op == IR1.ROP.EQ) {
 				result = (leftBool == rightBool);
@@ -411,10 +912,10 @@ public class IR1Interp {
 			}
 		}
 		// Otherwise Int vals
-		else if (leftVal instanceof IntVal && rightVal instanceof IntVal) {
+		else if (Val.tag(leftVal) == Val.INT && Val.tag(rightVal) == Val.INT) {
 
-			int leftInt = ((IntVal) leftVal).i;
-			int rightInt = ((IntVal) rightVal).i;
+			int leftInt = Val.i(leftVal);
+			int rightInt = Val.i(rightVal);
 
 			switch (n.op) {
 				case LE:
@@ -448,12 +949,7 @@ public class IR1Interp {
 		// If the conditional requirement is TRUE then we have to look
 		// up the location of the jump target
 		if (result) {
-			// I have no idea how to get the function name so just iterate.
-			for (LabMap i : labelMap.values()) {
-				if (i.containsKey(n.lab.name)) {
-					return i.get(n.lab.name);
-				}
-			}
+			return env.link.targets[env.pc];
 		}
 		// If the condition isnt met just roll through.
 		return CONTINUE;
@@ -466,13 +962,8 @@ public class IR1Interp {
 	//  Find and return the instruction index of the jump target label.
 	//
 	static int execute(IR1.Jump n, Env env) throws Exception {
-		// Same as above, just brute force find the labmap
-		for (LabMap i : labelMap.values()) {
-			if (i.containsKey(n.lab.name)) {
-				return i.get(n.lab.name);
-			}
-		}
-		return RETURN;
+		// Target was resolved within this function at link time
+		return env.link.targets[env.pc];
 	}
 
 
@@ -483,64 +974,82 @@ public class IR1Interp {
 	//
 	// GUIDE:
 	// 1. Evaluate the arguments to values.
-	// 2. Create a new Env for the callee; pair function's parameter
-	//    names with arguments' values, and add them to the new Env.
+	// 2. Open a window for the callee; pair function's parameter
+	//    slots with arguments' values.
 	// 3. Find callee's Func node and switch to execute it.
 	// 4. If 'rdst' is not null, update its entry in the Env with
 	//    the return value (should be avaiable in variable 'retVal').
 	//
 	static int execute(IR1.Call n, Env env) throws Exception {
-		// Three cases to check based on pre defined functions in pdf
-		// malloc, printInt, and printStr
-		//
-		// Malloc routine
+		// The target was bound at link time: either an intrinsic
+		// (malloc, printInt, printStr, ...) or a function in the
+		// program
 		//
-		if (n.gname.s.equals("_malloc")) {
-			// Get current end point in arraylist
-			int pos = memory.size();
-			// Pull the size we need to malloc
-			int memSize = ((IntVal) evaluate(n.args[0], env)).i;
-			// Dump undefined values into memory for that object.
-			// to represent allocation
-			for (int i = 0; i < memSize; i++) {
-				memory.add(new UndVal());
-			}
-			// Save the location in memory to the destination
-			env.put(n.rdst.toString(), new IntVal(pos));
-			//
-			// PrintInt routine
-			//
-		} else if (n.gname.s.equals("_printInt")) {
-			Val val = evaluate(n.args[0], env);
-			System.out.println("" + val);
-			//
-			// PrintStr routine
-			//
-		} else if (n.gname.s.equals("_printStr")) {
-			Val val = evaluate(n.args[0], env);
-			System.out.println("" + val);
-			//
-			// Some other Function has been called
-			//
+		int[] o = env.opnds();
+		IR1Intrinsic in = env.link.intrinsics[env.pc];
+		long result;
+		if (in != null) {
+			result = call(in, o, env);
+		} else if (env.link.tail[env.pc]) {
+			tailCall(env.link.callees[env.pc], o, env);
+			return TAILCALL;
 		} else {
-			// Get func info
-			IR1.Func func = funcMap.get(n.gname.s);
-			// Create a new env for the function
-			Env funcEnv = new Env();
-			int count = 0;
-			// Assume the params and args match up
-			for (IR1.Id p : func.params) {
-				funcEnv.put("" + p, evaluate(n.args[count], env));
-				count++;
+			FuncLink func = env.link.callees[env.pc];
+			// Open a window for the function. Args were checked against
+			// params at link time; params own the first slots of it
+			int fp = pushFrame(func);
+			for (int count = 0; count < func.func.params.length; count++) {
+				stack[fp + count] = evaluate(o[count + 1], env);
 			}
-			// Execute that
-			execute(func, funcEnv);
-			// Save return value into dst
-			env.put(n.rdst.toString(), retVal);
+			// Execute that in the same Env, then put it back
+			FuncLink link = env.link;
+			int pc = env.pc, callerFp = env.fp;
+			env.link = func;
+			env.fp = fp;
+			execute(func.func, env);
+			env.link = link;
+			env.pc = pc;
+			env.fp = callerFp;
+			sp = fp;
+			result = retVal;
 		}
+		// Save return value into dst
+		if (o[0] != NONE)
+			stack[env.fp + o[0]] = result;
 		return CONTINUE;
 	}
 
+	// Turn the running function's window into a fresh one for 'func'.
+	// Args are evaluated before any slot is reset, since they are read
+	// from the window being reused.
+	//
+	static long[] tailArgs = new long[8];
+
+	static void tailCall(FuncLink func, int[] o, Env env) throws Exception {
+		int nargs = o.length - 1;
+		if (tailArgs.length < nargs)
+			tailArgs = new long[nargs];
+		for (int i = 0; i < nargs; i++)
+			tailArgs[i] = evaluate(o[i + 1], env);
+		sp = env.fp;
+		pushFrame(func);
+		System.arraycopy(tailArgs, 0, stack, env.fp, nargs);
+		env.link = func;
+	}
+
+	static long call(IR1Intrinsic in, int[] o, Env env) throws Exception {
+		switch (in.arity) {
+			case 0:
+				return in.call0();
+			case 1:
+				return in.call1(evaluate(o[1], env));
+			case 2:
+				return in.call2(evaluate(o[1], env), evaluate(o[2], env));
+			default:
+				return in.call3(evaluate(o[1], env), evaluate(o[2], env), evaluate(o[3], env));
+		}
+	}
+
 
 	// Return ---
 	//  Src val;
@@ -550,7 +1059,7 @@ public class IR1Interp {
 	//
 	static int execute(IR1.Return n, Env env) throws Exception {
 		if (n.val != null)
-			retVal = evaluate(n.val, env);
+			retVal = evaluate(env.opnds()[0], env);
 		return RETURN;
 	}
 
@@ -569,51 +1078,22 @@ public class IR1Interp {
 	// 1. Evaluate 'base' to an integer, then add 'offset' to it.
 	// 2. Return the result (which should be an index to memory).
 	//
-	static int evaluate(IR1.Addr n, Env env) throws Exception {
-		int loc = ((IntVal) evaluate(n.base, env)).i;
+	// 'base' is the linked operand for n.base.
+	//
+	static int evaluate(IR1.Addr n, int base, Env env) throws Exception {
+		int loc = Val.num(evaluate(base, env));
 		return loc + n.offset;
 	}
 
 	// Src Nodes
 	//  -> Temp | Id | IntLit | BooLit | StrLit
 	//
-	// GUIDE:
-	//  In each case, the evaluate() routine returns a Val object.
-	//  - For Temp and Id, look up their value from the Env, wrap
-	//    it in a Val and return.
-	//  - For the literals, wrap their value in a Val and return.
-	//
-	static Val evaluate(IR1.Src n, Env env) throws Exception {
-		Val val = null;
-		if (n instanceof IR1.Temp) {
-			val = env.get(n.toString());
-		}
-		if (n instanceof IR1.Id) {
-			val = env.get(n.toString());
-		}
-		if (n instanceof IR1.IntLit) val = new IntVal(((IR1.IntLit) n).i);
-		if (n instanceof IR1.BoolLit) val = new BoolVal(((IR1.BoolLit) n).b);
-		if (n instanceof IR1.StrLit) val = new StrVal(((IR1.StrLit) n).s);
-		return val;
-	}
-
-	// Dst Nodes
-	//  -> Temp | Id
+	// Operands were linked ahead of time: Temps and Ids index the
+	// frame directly and literals come out of the constant pool, so
+	// no names are built or hashed here.
 	//
-	// GUIDE:
-	//  For both cases, look up their value from the Env, wrap it
-	//  in a Val and return.
-	//
-	static Val evaluate(IR1.Dest n, Env env) throws Exception {
-		Val val = null;
-
-		if (n instanceof IR1.Id) {
-			val = env.get(n.toString());
-		}
-		if (n instanceof IR1.Temp) {
-			val = env.get(n.toString());
-		}
-		return val;
+	static long evaluate(int opnd, Env env) {
+		return opnd >= 0 ? stack[env.fp + opnd] : env.link.consts[~opnd];
 	}
 
 }
@@ -0,0 +1,168 @@
+// This is supporting software for CS322 Compilers and Language Design II
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+//
+// Andrew McCann
+// CS322 HW3
+// Winter 2016
+//
+
+// IR1 intrinsics.
+//
+// Builtins such as _malloc and _printInt are IR1Intrinsic objects kept
+// in a registry by name. A Call to a registered name is bound to its
+// intrinsic when the program is linked, and every engine then calls it
+// through call0..call3 directly, so no argument array is ever built. A
+// program that defines a function with a registered name is rejected
+// at link time.
+//
+// To add a helper, register it before the program is linked:
+//
+//   IR1Intrinsic.register(new IR1Intrinsic("_abs", 1, true) {
+//       long call1(long a) throws Exception {
+//           return IR1Interp.Val.ofInt(Math.abs(IR1Interp.Val.num(a)));
+//       }
+//   });
+//
+// Args and results are tagged values (see IR1Interp.Val); an intrinsic
+// with nothing to answer returns Val.UND. A pure intrinsic has no side
+// effects, so IR1Opt may drop a call to it whose result is unused. One
+// that has side effects but never stores to the heap can clear
+// 'stores', and IR1Opt then keeps what it knows about memory across
+// calls to it. One that hands blocks back to the heap sets 'frees', so
+// that a program linked against it gets block headers (see IR1Heap).
+//
+
+import java.util.*;
+
+public abstract class IR1Intrinsic {
+
+	static final int MAX_ARITY = 3;
+
+	final String name;
+	final int arity;
+	final boolean pure;
+	boolean stores = true;  // may store to the heap
+	boolean frees;          // takes blocks back (IR1Heap.free)
+	int id;                 // index in 'table'
+
+	IR1Intrinsic(String name, int arity, boolean pure) {
+		this.name = name;
+		this.arity = arity;
+		this.pure = pure;
+	}
+
+	// Override the one matching 'arity'.
+	//
+	long call0() throws Exception {
+		throw new IR1Interp.IntException(name + " takes " + arity + " args");
+	}
+
+	long call1(long a) throws Exception {
+		throw new IR1Interp.IntException(name + " takes " + arity + " args");
+	}
+
+	long call2(long a, long b) throws Exception {
+		throw new IR1Interp.IntException(name + " takes " + arity + " args");
+	}
+
+	long call3(long a, long b, long c) throws Exception {
+		throw new IR1Interp.IntException(name + " takes " + arity + " args");
+	}
+
+	public String toString() {
+		return name;
+	}
+
+	//-----------------------------------------------------------------
+	// Registry
+	//-----------------------------------------------------------------
+	//
+	static HashMap<String, IR1Intrinsic> registry = new HashMap<>();
+	static IR1Intrinsic[] table = new IR1Intrinsic[0];
+
+	// Add (or replace) an intrinsic. Calls already bound keep the one
+	// they were bound to.
+	//
+	static void register(IR1Intrinsic in) {
+		if (in.arity < 0 || in.arity > MAX_ARITY)
+			throw new IllegalArgumentException(in.name + ": intrinsics take at most " + MAX_ARITY + " args");
+		in.id = table.length;
+		table = Arrays.copyOf(table, table.length + 1);
+		table[in.id] = in;
+		registry.put(in.name, in);
+	}
+
+	// The intrinsic called 'name', or null.
+	//
+	static IR1Intrinsic lookup(String name) {
+		return registry.get(name);
+	}
+
+	// Entry points for generated code, which refers to an intrinsic by
+	// its id.
+	//
+	static long call(int id) throws Exception {
+		return table[id].call0();
+	}
+
+	static long call(int id, long a) throws Exception {
+		return table[id].call1(a);
+	}
+
+	static long call(int id, long a, long b) throws Exception {
+		return table[id].call2(a, b);
+	}
+
+	static long call(int id, long a, long b, long c) throws Exception {
+		return table[id].call3(a, b, c);
+	}
+
+	//-----------------------------------------------------------------
+	// Builtins
+	//-----------------------------------------------------------------
+	//
+	static {
+		register(new IR1Intrinsic("_malloc", 1, false) {
+			{
+				stores = false;
+			}
+
+			long call1(long size) throws Exception {
+				return IR1Interp.Val.ofInt(IR1Interp.malloc(IR1Interp.Val.num(size)));
+			}
+		});
+		register(new IR1Intrinsic("_free", 1, false) {
+			{
+				frees = true;
+			}
+
+			long call1(long p) throws Exception {
+				IR1Interp.heap.free(IR1Interp.Val.num(p));
+				return IR1Interp.Val.UND;
+			}
+		});
+		register(new IR1Intrinsic("_printInt", 1, false) {
+			{
+				stores = false;
+			}
+
+			long call1(long a) {
+				System.out.println(IR1Interp.Val.toString(a));
+				return IR1Interp.Val.UND;
+			}
+		});
+		register(new IR1Intrinsic("_printStr", 1, false) {
+			{
+				stores = false;
+			}
+
+			long call1(long a) {
+				System.out.println(IR1Interp.Val.toString(a));
+				return IR1Interp.Val.UND;
+			}
+		});
+	}
+}
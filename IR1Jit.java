@@ -0,0 +1,690 @@
+// This is supporting software for CS322 Compilers and Language Design II
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+//
+// Andrew McCann
+// CS322 HW3
+// Winter 2016
+//
+
+// IR1 to JVM bytecode compiler.
+//
+// Every IR1.Func becomes a static method 'long name(long, ...)' of one
+// generated class, which is loaded with Lookup.defineHiddenClass so
+// HotSpot compiles the IR1 program like any other Java code.
+//
+//  - Temps and Ids become long locals (slot s -> local 2*s), holding
+//    the same tagged values as the interpreter's frames.
+//  - Jump/CJump become goto/ifne branches.
+//  - Calls between IR1 functions are direct invokestatics; builtins
+//    and the per-op value helpers are invokestatics into this class,
+//    which HotSpot inlines.
+//
+// The class is emitted at version 49, so no StackMapTable is needed.
+//
+// For tiered execution (see promote()), a hot function also gets an
+// entry 'name$osr(long[] stack, int fp, int pc)' that loads every slot
+// from an interpreter frame (the window at 'fp' on the tree-walker's
+// value stack) and resumes at 'pc', so a function can be promoted in
+// the middle of a loop.
+//
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.util.*;
+
+import ir.*;
+
+public class IR1Jit {
+
+	static final String CODE_CLASS = "IR1JitCode";
+	static final String RT_CLASS = "IR1Jit";
+	static final String INTRINSIC_CLASS = "IR1Intrinsic";
+
+	// Compile every linked function into one hidden class, then run
+	// '_main'.
+	//
+	static void run(IR1Interp.FuncLink main) throws Exception {
+		MethodHandles.Lookup code = define(IR1Interp.funcMap.values());
+		MethodHandle mh = code.findStatic(code.lookupClass(), main.func.gname.s,
+				MethodType.methodType(long.class));
+		try {
+			long ignored = (long) mh.invokeExact();
+		} catch (Exception | Error e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new RuntimeException(t);
+		}
+	}
+
+	// Generate and load a class holding the given functions. The set
+	// must be closed under calls.
+	//
+	static MethodHandles.Lookup define(Collection<IR1Interp.FuncLink> funcs) throws Exception {
+		ClassGen cg = new ClassGen();
+		for (IR1Interp.FuncLink f : funcs)
+			cg.methods.add(compile(cg, f, false));
+		return MethodHandles.lookup().defineHiddenClass(cg.toBytes(), true);
+	}
+
+	// Compile a hot function, plus every function it can reach by
+	// calls, into a class of its own, and answer a handle on its
+	// 'long name$osr(long[] stack, int fp, int pc)' entry.
+	//
+	// Compiled code only turns a function's tail calls to itself into
+	// loops, so anything that makes other tail calls is left to the
+	// tree-walker, which runs them in constant stack.
+	//
+	static MethodHandle promote(IR1Interp.FuncLink hot) throws Exception {
+		ClassGen cg = new ClassGen();
+		LinkedHashSet<IR1Interp.FuncLink> reach = new LinkedHashSet<>();
+		ArrayDeque<IR1Interp.FuncLink> work = new ArrayDeque<>();
+		reach.add(hot);
+		work.add(hot);
+		while (!work.isEmpty()) {
+			IR1Interp.FuncLink f = work.remove();
+			for (int i = 0; i < f.callees.length; i++) {
+				IR1Interp.FuncLink callee = f.callees[i];
+				if (callee == null)
+					continue;
+				if (f.tail[i] && callee != f)
+					throw new IR1Interp.IntException("tail call from " + f.func.gname + " to " + callee.func.gname);
+				if (reach.add(callee))
+					work.add(callee);
+			}
+		}
+		for (IR1Interp.FuncLink f : reach)
+			cg.methods.add(compile(cg, f, false));
+		cg.methods.add(compile(cg, hot, true));
+		MethodHandles.Lookup code = MethodHandles.lookup().defineHiddenClass(cg.toBytes(), true);
+		return code.findStatic(code.lookupClass(), hot.func.gname.s + "$osr",
+				MethodType.methodType(long.class, long[].class, int.class, int.class));
+	}
+
+	static String desc(int nparams) {
+		StringBuilder sb = new StringBuilder("(");
+		for (int i = 0; i < nparams; i++)
+			sb.append('J');
+		return sb.append(")J").toString();
+	}
+
+	//-----------------------------------------------------------------
+	// Code Generation
+	//-----------------------------------------------------------------
+	//
+	static byte[] compile(ClassGen cg, IR1Interp.FuncLink link, boolean osr) throws Exception {
+		IR1.Func f = link.func;
+		// An OSR entry keeps (stack, fp, pc) in locals 0-2
+		Code c = new Code(cg, link, osr ? 3 : 0);
+		int[] starts = new int[f.code.length + 1];
+
+		if (osr) {
+			// Copy the frame into locals, then switch on pc. Only the
+			// start and jump targets can be resumed at.
+			for (int s = 0; s < link.nslots; s++) {
+				c.op(ALOAD_0);
+				c.op(ILOAD_1);
+				c.iconst(s);
+				c.op(IADD);
+				c.op(LALOAD);
+				c.store(s);
+			}
+			TreeSet<Integer> entries = new TreeSet<>();
+			for (int i = 0; i < f.code.length; i++) {
+				if (f.code[i] instanceof IR1.Jump || f.code[i] instanceof IR1.CJump)
+					entries.add(link.targets[i]);
+			}
+			c.op(ILOAD_2);
+			c.lookupswitch(0, entries);
+		} else {
+			// Non-param locals start out undefined (and the verifier
+			// wants them assigned)
+			for (int s = f.params.length; s < link.nslots; s++) {
+				c.op(LCONST_0);
+				c.store(s);
+			}
+		}
+		for (int i = 0; i < f.code.length; i++) {
+			starts[i] = c.size();
+			compile(c, link, i);
+		}
+		// Falling off the end is a bare return
+		starts[f.code.length] = c.size();
+		c.rt("lastRet", "()J");
+		c.op(LRETURN);
+		c.patch(starts);
+
+		if (osr)
+			return cg.method(f.gname.s + "$osr", "([JII)J", c, 3 + 2 * link.nslots);
+		return cg.method(f.gname.s, desc(f.params.length), c,
+				Math.max(2 * link.nslots, 2 * f.params.length));
+	}
+
+	static void compile(Code c, IR1Interp.FuncLink link, int pc) throws Exception {
+		IR1.Inst n = link.func.code[pc];
+		int[] o = link.opnds[pc];
+		int target = link.targets[pc];
+		if (n instanceof IR1.Binop) {
+			c.push(o[1]);
+			c.push(o[2]);
+			c.rt(binopHelper(((IR1.Binop) n).op), "(JJ)J");
+			c.store(o[0]);
+		} else if (n instanceof IR1.Unop) {
+			c.push(o[1]);
+			c.rt(((IR1.Unop) n).op == IR1.UOP.NEG ? "neg" : "not", "(J)J");
+			c.store(o[0]);
+		} else if (n instanceof IR1.Move) {
+			c.push(o[1]);
+			c.store(o[0]);
+		} else if (n instanceof IR1.Load) {
+			c.push(o[1]);
+			c.rt("num", "(J)I");
+			c.iconst(((IR1.Load) n).addr.offset);
+			c.op(IADD);
+			c.rt("load", "(I)J");
+			c.store(o[0]);
+		} else if (n instanceof IR1.Store) {
+			c.push(o[0]);
+			c.rt("num", "(J)I");
+			c.iconst(((IR1.Store) n).addr.offset);
+			c.op(IADD);
+			c.push(o[1]);
+			c.rt("store", "(IJ)V");
+		} else if (n instanceof IR1.Call) {
+			if (link.tail[pc] && link.callees[pc] == link)
+				compileSelfTailCall(c, link, o);
+			else
+				compileCall(c, link.intrinsics[pc], link.callees[pc], o);
+		} else if (n instanceof IR1.Return) {
+			if (o[0] == IR1Interp.NONE) {
+				c.rt("lastRet", "()J");
+			} else {
+				c.push(o[0]);
+				c.rt("ret", "(J)J");
+			}
+			c.op(LRETURN);
+		} else if (n instanceof IR1.CJump) {
+			c.push(o[0]);
+			c.push(o[1]);
+			c.rt("if" + binopHelper(((IR1.CJump) n).op), "(JJ)Z");
+			c.branch(IFNE, target);
+		} else if (n instanceof IR1.Jump) {
+			c.branch(GOTO, target);
+		} else if (!(n instanceof IR1.LabelDec)) {
+			throw new IR1Interp.IntException("Unknown Inst: " + n);
+		}
+	}
+
+	static void compileCall(Code c, IR1Intrinsic in, IR1Interp.FuncLink callee, int[] o) throws Exception {
+		if (in != null) {
+			// IR1Intrinsic.call(id, args...)
+			c.iconst(in.id);
+			for (int i = 1; i < o.length; i++)
+				c.push(o[i]);
+			c.invoke(INTRINSIC_CLASS, "call", "(I" + desc(o.length - 1).substring(1));
+		} else {
+			for (int i = 1; i < o.length; i++)
+				c.push(o[i]);
+			c.invoke(CODE_CLASS, callee.func.gname.s, desc(o.length - 1));
+		}
+		if (o[0] == IR1Interp.NONE)
+			c.op(POP2);
+		else
+			c.store(o[0]);
+	}
+
+	// A function returning the result of a call to itself just
+	// reloads its params and jumps back to its first inst.
+	//
+	static void compileSelfTailCall(Code c, IR1Interp.FuncLink link, int[] o) throws Exception {
+		for (int i = 1; i < o.length; i++)
+			c.push(o[i]);
+		for (int i = o.length - 2; i >= 0; i--)
+			c.store(i);
+		for (int s = o.length - 1; s < link.nslots; s++) {
+			c.op(LCONST_0);
+			c.store(s);
+		}
+		c.branch(GOTO, 0);
+	}
+
+	// add, sub, ..., lt, ge: the helper named after the operator
+	static String binopHelper(IR1.BOP op) {
+		return ((Enum<?>) op).name().toLowerCase();
+	}
+
+	//-----------------------------------------------------------------
+	// Runtime Support
+	//-----------------------------------------------------------------
+	//
+	// Called from generated code. All take and return tagged values,
+	// except the 'if' compares, which answer a JVM boolean for ifne.
+	//
+	static int num(long v) throws IR1Interp.IntException {
+		return IR1Interp.Val.num(v);
+	}
+
+	static boolean bool(long v) throws IR1Interp.IntException {
+		return IR1Interp.Val.bool(v);
+	}
+
+	static long add(long a, long b) throws IR1Interp.IntException {
+		return IR1Interp.Val.ofInt(num(a) + num(b));
+	}
+
+	static long sub(long a, long b) throws IR1Interp.IntException {
+		return IR1Interp.Val.ofInt(num(a) - num(b));
+	}
+
+	static long mul(long a, long b) throws IR1Interp.IntException {
+		return IR1Interp.Val.ofInt(num(a) * num(b));
+	}
+
+	static long div(long a, long b) throws IR1Interp.IntException {
+		return IR1Interp.Val.ofInt(num(a) / num(b));
+	}
+
+	static long and(long a, long b) throws IR1Interp.IntException {
+		return IR1Interp.Val.ofBool(bool(a) && bool(b));
+	}
+
+	static long or(long a, long b) throws IR1Interp.IntException {
+		return IR1Interp.Val.ofBool(bool(a) || bool(b));
+	}
+
+	static long eq(long a, long b) throws IR1Interp.IntException {
+		return IR1Interp.Val.ofBool(ifeq(a, b));
+	}
+
+	static long ne(long a, long b) throws IR1Interp.IntException {
+		return IR1Interp.Val.ofBool(!ifeq(a, b));
+	}
+
+	static long lt(long a, long b) throws IR1Interp.IntException {
+		return IR1Interp.Val.ofBool(num(a) < num(b));
+	}
+
+	static long le(long a, long b) throws IR1Interp.IntException {
+		return IR1Interp.Val.ofBool(num(a) <= num(b));
+	}
+
+	static long gt(long a, long b) throws IR1Interp.IntException {
+		return IR1Interp.Val.ofBool(num(a) > num(b));
+	}
+
+	static long ge(long a, long b) throws IR1Interp.IntException {
+		return IR1Interp.Val.ofBool(num(a) >= num(b));
+	}
+
+	static long neg(long a) throws IR1Interp.IntException {
+		return IR1Interp.Val.ofInt(-num(a));
+	}
+
+	static long not(long a) throws IR1Interp.IntException {
+		return IR1Interp.Val.ofBool(!bool(a));
+	}
+
+	// Booleans compare with == and != only; both sides must agree
+	static boolean ifeq(long a, long b) throws IR1Interp.IntException {
+		if (IR1Interp.Val.tag(a) == IR1Interp.Val.BOOL)
+			return bool(a) == bool(b);
+		return num(a) == num(b);
+	}
+
+	static boolean ifne(long a, long b) throws IR1Interp.IntException {
+		return !ifeq(a, b);
+	}
+
+	static boolean iflt(long a, long b) throws IR1Interp.IntException {
+		return num(a) < num(b);
+	}
+
+	static boolean ifle(long a, long b) throws IR1Interp.IntException {
+		return num(a) <= num(b);
+	}
+
+	static boolean ifgt(long a, long b) throws IR1Interp.IntException {
+		return num(a) > num(b);
+	}
+
+	static boolean ifge(long a, long b) throws IR1Interp.IntException {
+		return num(a) >= num(b);
+	}
+
+	static long load(int addr) throws IR1Interp.IntException {
+		return IR1Interp.memLoad(addr);
+	}
+
+	static void store(int addr, long v) throws IR1Interp.IntException {
+		IR1Interp.memStore(addr, v);
+	}
+
+	// Like the tree-walker, a bare return answers whatever the last
+	// return with a value did.
+	//
+	static long ret(long v) {
+		return IR1Interp.retVal = v;
+	}
+
+	static long lastRet() {
+		return IR1Interp.retVal;
+	}
+
+	//-----------------------------------------------------------------
+	// Class File Writing
+	//-----------------------------------------------------------------
+	//
+	// Just enough of the class file format for the code above: one
+	// final class with static methods, and the constant pool entries
+	// they use.
+	//
+	static final int IADD = 0x60, LCONST_0 = 0x09, LSTORE = 0x37, LLOAD = 0x16,
+			LRETURN = 0xad, POP2 = 0x58, IFNE = 0x9a, GOTO = 0xa7,
+			INVOKESTATIC = 0xb8, LDC = 0x12, LDC_W = 0x13, LDC2_W = 0x14,
+			BIPUSH = 0x10, SIPUSH = 0x11, ICONST_0 = 0x03, WIDE = 0xc4,
+			ALOAD_0 = 0x2a, ILOAD_1 = 0x1b, ILOAD_2 = 0x1c, LALOAD = 0x2f, LOOKUPSWITCH = 0xab;
+
+	static class ClassGen {
+		final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+		final DataOutputStream cp = new DataOutputStream(pool);
+		final HashMap<String, Integer> entries = new HashMap<>();
+		final ArrayList<byte[]> methods = new ArrayList<>();
+		int count = 1;
+
+		int entry(String key, int slots, byte[] bytes) {
+			Integer idx = entries.get(key);
+			if (idx == null) {
+				idx = count;
+				count += slots;
+				pool.write(bytes, 0, bytes.length);
+				entries.put(key, idx);
+			}
+			return idx;
+		}
+
+		int utf8(String s) {
+			try {
+				ByteArrayOutputStream b = new ByteArrayOutputStream();
+				DataOutputStream d = new DataOutputStream(b);
+				d.writeByte(1);
+				d.writeUTF(s);
+				return entry("U" + s, 1, b.toByteArray());
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		int ref(int tag, String key, int a, int b, int slots) {
+			byte[] bytes = b < 0
+					? new byte[]{(byte) tag, (byte) (a >> 8), (byte) a}
+					: new byte[]{(byte) tag, (byte) (a >> 8), (byte) a, (byte) (b >> 8), (byte) b};
+			return entry(key, slots, bytes);
+		}
+
+		int cls(String name) {
+			return ref(7, "C" + name, utf8(name), -1, 1);
+		}
+
+		int string(String s) {
+			return ref(8, "S" + s, utf8(s), -1, 1);
+		}
+
+		int method(String owner, String name, String desc) {
+			int nat = ref(12, "N" + name + desc, utf8(name), utf8(desc), 1);
+			return ref(10, "M" + owner + "." + name + desc, cls(owner), nat, 1);
+		}
+
+		int integer(int v) {
+			return entry("I" + v, 1, new byte[]{3, (byte) (v >> 24), (byte) (v >> 16), (byte) (v >> 8), (byte) v});
+		}
+
+		int lng(long v) {
+			byte[] bytes = new byte[9];
+			bytes[0] = 5;
+			for (int i = 0; i < 8; i++)
+				bytes[1 + i] = (byte) (v >> (56 - 8 * i));
+			return entry("J" + v, 2, bytes);
+		}
+
+		// A static method with a Code attribute
+		byte[] method(String name, String desc, Code c, int maxLocals) throws Exception {
+			byte[] code = c.toBytes();
+			if (code.length > 65535)
+				throw new IR1Interp.IntException("Function too large to compile: " + name);
+			ByteArrayOutputStream b = new ByteArrayOutputStream();
+			DataOutputStream d = new DataOutputStream(b);
+			d.writeShort(0x0008);                 // ACC_STATIC
+			d.writeShort(utf8(name));
+			d.writeShort(utf8(desc));
+			d.writeShort(1);
+			d.writeShort(utf8("Code"));
+			d.writeInt(12 + code.length);
+			d.writeShort(c.maxStack);
+			d.writeShort(maxLocals);
+			d.writeInt(code.length);
+			d.write(code);
+			d.writeShort(0);                      // exception table
+			d.writeShort(0);                      // attributes
+			return b.toByteArray();
+		}
+
+		byte[] toBytes() throws IOException {
+			int thisClass = cls(CODE_CLASS);
+			int superClass = cls("java/lang/Object");
+			ByteArrayOutputStream b = new ByteArrayOutputStream();
+			DataOutputStream d = new DataOutputStream(b);
+			d.writeInt(0xCAFEBABE);
+			d.writeShort(0);
+			d.writeShort(49);
+			d.writeShort(count);
+			d.write(pool.toByteArray());
+			d.writeShort(0x0011);                 // ACC_PUBLIC | ACC_FINAL
+			d.writeShort(thisClass);
+			d.writeShort(superClass);
+			d.writeShort(0);                      // interfaces
+			d.writeShort(0);                      // fields
+			d.writeShort(methods.size());
+			for (byte[] m : methods)
+				d.write(m);
+			d.writeShort(0);                      // attributes
+			return b.toByteArray();
+		}
+	}
+
+	// Bytecode for one method. Branches name an inst index and are
+	// patched once every inst's start offset is known. Slot s lives in
+	// local base + 2*s.
+	//
+	static class Code {
+		final ClassGen cg;
+		final IR1Interp.FuncLink link;
+		final int base;
+		byte[] buf = new byte[256];
+		int len = 0;
+		int depth = 0, maxStack = 0;
+		// {opcode offset, patch offset, target inst, 4-byte?}
+		final ArrayList<int[]> fixups = new ArrayList<>();
+
+		Code(ClassGen cg, IR1Interp.FuncLink link, int base) {
+			this.cg = cg;
+			this.link = link;
+			this.base = base;
+		}
+
+		int size() {
+			return len;
+		}
+
+		void u1(int b) {
+			if (len == buf.length)
+				buf = Arrays.copyOf(buf, len * 2);
+			buf[len++] = (byte) b;
+		}
+
+		void u2raw(int v) {
+			u1(v >> 8);
+			u1(v);
+		}
+
+		// Track the operand stack depth (in words)
+		void stack(int delta) {
+			depth += delta;
+			maxStack = Math.max(maxStack, depth);
+		}
+
+		void op(int opcode) {
+			u1(opcode);
+			switch (opcode) {
+				case LCONST_0:
+					stack(2);
+					break;
+				case ALOAD_0:
+				case ILOAD_1:
+				case ILOAD_2:
+					stack(1);
+					break;
+				case LRETURN:
+				case POP2:
+				case LSTORE:
+					stack(-2);
+					break;
+				case IADD:
+					stack(-1);
+					break;
+			}
+		}
+
+		void iconst(int v) {
+			if (v >= -1 && v <= 5) {
+				u1(ICONST_0 + v);
+			} else if (v >= -128 && v <= 127) {
+				u1(BIPUSH);
+				u1(v);
+			} else if (v >= -32768 && v <= 32767) {
+				u1(SIPUSH);
+				u2raw(v);
+			} else {
+				ldc(cg.integer(v));
+				stack(-1);
+			}
+			stack(1);
+		}
+
+		void ldc(int idx) {
+			if (idx < 256) {
+				u1(LDC);
+				u1(idx);
+			} else {
+				u1(LDC_W);
+				u2raw(idx);
+			}
+			stack(1);
+		}
+
+		// Push a linked operand
+		void push(int opnd) {
+			if (opnd >= 0) {
+				local(LLOAD, opnd);
+				stack(2);
+			} else {
+				u1(LDC2_W);
+				u2raw(cg.lng(link.consts[~opnd]));
+				stack(2);
+			}
+		}
+
+		void store(int slot) {
+			local(LSTORE, slot);
+			stack(-2);
+		}
+
+		void local(int opcode, int slot) {
+			int idx = base + 2 * slot;
+			if (idx < 256) {
+				u1(opcode);
+				u1(idx);
+			} else {
+				u1(WIDE);
+				u1(opcode);
+				u2raw(idx);
+			}
+		}
+
+		void rt(String name, String desc) {
+			invoke(RT_CLASS, name, desc);
+		}
+
+		void invoke(String owner, String name, String desc) {
+			u1(INVOKESTATIC);
+			u2raw(cg.method(owner, name, desc));
+			stack(-words(desc.substring(1, desc.indexOf(')'))));
+			stack(words(desc.substring(desc.indexOf(')') + 1)));
+		}
+
+		static int words(String types) {
+			int n = 0;
+			for (int i = 0; i < types.length(); i++) {
+				char t = types.charAt(i);
+				if (t == 'J' || t == 'D')
+					n += 2;
+				else if (t == 'L') {
+					n += 1;
+					i = types.indexOf(';', i);
+				} else if (t != 'V')
+					n += 1;
+			}
+			return n;
+		}
+
+		void branch(int opcode, int target) {
+			if (opcode == IFNE)
+				stack(-1);
+			fixups.add(new int[]{len, len + 1, target, 0});
+			u1(opcode);
+			u2raw(0);
+		}
+
+		// Switch on the int on top of the stack: each key jumps to the
+		// inst of the same index, anything else to 'dflt'.
+		void lookupswitch(int dflt, SortedSet<Integer> keys) {
+			int at = len;
+			stack(-1);
+			u1(LOOKUPSWITCH);
+			while (len % 4 != 0)
+				u1(0);
+			fixups.add(new int[]{at, len, dflt, 1});
+			u2raw(0);
+			u2raw(0);
+			u2raw(keys.size() >> 16);
+			u2raw(keys.size());
+			for (int key : keys) {
+				u2raw(key >> 16);
+				u2raw(key);
+				fixups.add(new int[]{at, len, key, 1});
+				u2raw(0);
+				u2raw(0);
+			}
+		}
+
+		void patch(int[] starts) throws IR1Interp.IntException {
+			for (int[] fix : fixups) {
+				int offset = starts[fix[2]] - fix[0];
+				int p = fix[1];
+				if (fix[3] == 1) {
+					buf[p++] = (byte) (offset >> 24);
+					buf[p++] = (byte) (offset >> 16);
+				} else if (offset != (short) offset) {
+					throw new IR1Interp.IntException("Branch out of range in " + link.func.gname);
+				}
+				buf[p++] = (byte) (offset >> 8);
+				buf[p] = (byte) offset;
+			}
+		}
+
+		byte[] toBytes() {
+			return Arrays.copyOf(buf, len);
+		}
+	}
+}
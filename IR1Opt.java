@@ -0,0 +1,1424 @@
+// This is supporting software for CS322 Compilers and Language Design II
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+//
+// Andrew McCann
+// CS322 HW3
+// Winter 2016
+//
+
+// IR1 optimizer.
+//
+// IR-to-IR passes run over the program before it is linked. Every pass
+// builds new IR1 nodes rather than changing the parser's.
+//
+//  - propagate: constant folding, constant and copy propagation, and
+//    folding of CJumps on constants
+//  - inline: copies small leaf functions into their callers
+//  - scalarize: replaces small _malloc blocks that don't escape with
+//    variables
+//  - forward: replaces Loads of a word whose value is known (just
+//    stored or loaded) with Moves
+//  - eliminate: dead store and unreachable code elimination
+//  - coalesce: merges the two sides of a Move when their live ranges
+//    don't overlap
+//
+// allocateSlots() is not a pass: the linker calls it to pack a
+// function's variables into as few frame slots as liveness allows.
+//
+// With -v, what each pass removed is reported on stderr.
+//
+
+import java.util.*;
+import java.util.function.*;
+
+import ir.*;
+
+public class IR1Opt {
+
+	// Cap on how often a pass re-runs itself looking for more to do
+	static final int MAX_ROUNDS = 10;
+
+	// Inlining limits, in insts (not counting LabelDecs)
+	static final int INLINE_SIZE = 16;        // any leaf this small
+	static final int INLINE_ONCE_SIZE = 64;   // a leaf with one call site
+	static final int MAX_CALLER_SIZE = 1000;  // stop growing a caller here
+
+	// Run the passes over every function. Inlining goes first, so the
+	// other passes see inlined bodies in their caller's context.
+	//
+	static IR1.Program optimize(IR1.Program p) throws Exception {
+		p = inline(p);
+		IR1.Func[] funcs = new IR1.Func[p.funcs.length];
+		for (int i = 0; i < funcs.length; i++) {
+			IR1.Func f = propagate(p.funcs[i]);
+			IR1.Func g = forward(scalarize(f));
+			if (g != f)
+				f = propagate(g);
+			f = eliminate(f);
+			f = coalesce(f);
+			funcs[i] = f;
+		}
+		return new IR1.Program(funcs);
+	}
+
+	static void report(IR1.Func f, String what) {
+		if (IR1Interp.verbose)
+			System.err.println("[opt] " + f.gname + ": " + what);
+	}
+
+	//-----------------------------------------------------------------
+	// Inlining
+	//-----------------------------------------------------------------
+	//
+	// A call to a leaf function (one that calls nothing but intrinsics)
+	// is replaced by a copy of the callee's body if the callee is small,
+	// or has only the one call site. In the copy every variable becomes
+	// a fresh Temp and every label gets a fresh name; params are Moved
+	// in from the args, and each Return becomes a Move to the call's
+	// rdst and a Jump past the copy.
+	//
+	// A callee is left alone if it reads a non-param variable before
+	// writing it (the copy would see the last call's value instead of
+	// undefined), or if the call wants a result on a path where the
+	// callee returns none. A copy can't set retVal either, so a callee
+	// that returns a value also stays a call if a bare return (which
+	// passes retVal on) may follow it, in a function whose result is
+	// used.
+	//
+	static IR1.Program inline(IR1.Program p) throws Exception {
+		HashMap<String, IR1.Func> byName = new HashMap<>();
+		HashMap<String, Integer> sites = new HashMap<>();
+		int temps = 0;
+		for (IR1.Func f : p.funcs) {
+			byName.put(f.gname.s, f);
+			for (IR1.Inst n : f.code) {
+				if (n instanceof IR1.Call)
+					sites.merge(((IR1.Call) n).gname.s, 1, Integer::sum);
+				for (IR1.Src v : vars(n)) {
+					if (v instanceof IR1.Temp)
+						temps = Math.max(temps, ((IR1.Temp) v).num);
+				}
+			}
+		}
+		HashSet<String> inlinable = new HashSet<>();
+		for (IR1.Func f : p.funcs) {
+			int size = size(f);
+			if (isLeaf(f) && liveOnEntry(f).isEmpty()
+					&& (size <= INLINE_SIZE || sites.getOrDefault(f.gname.s, 0) == 1 && size <= INLINE_ONCE_SIZE))
+				inlinable.add(f.gname.s);
+		}
+		HashSet<String> used = resultUsed(p);
+		IR1.Func[] funcs = new IR1.Func[p.funcs.length];
+		int site = 0;
+		for (int i = 0; i < funcs.length; i++) {
+			IR1.Func f = p.funcs[i];
+			boolean[] bare = used.contains(f.gname.s) ? reachesBareReturn(f) : null;
+			ArrayList<IR1.Inst> out = new ArrayList<>();
+			int size = size(f), inlined = 0;
+			for (int j = 0; j < f.code.length; j++) {
+				IR1.Inst n = f.code[j];
+				// (A call to an intrinsic's name goes to the intrinsic)
+				IR1.Func callee = n instanceof IR1.Call && IR1Intrinsic.lookup(((IR1.Call) n).gname.s) == null
+						? byName.get(((IR1.Call) n).gname.s) : null;
+				if (callee == null || callee == f || !inlinable.contains(callee.gname.s)
+						|| size + size(callee) > MAX_CALLER_SIZE || !canInline((IR1.Call) n, callee)
+						|| bare != null && bare[j + 1] && returnsValue(callee)) {
+					out.add(n);
+					continue;
+				}
+				temps = inline((IR1.Call) n, callee, ++site, temps, out);
+				size += size(callee);
+				inlined++;
+			}
+			if (inlined > 0) {
+				f = new IR1.Func(f.gname, f.params, f.locals, out.toArray(new IR1.Inst[0]));
+				report(f, "inlined " + inlined + " calls");
+			}
+			funcs[i] = f;
+		}
+		return new IR1.Program(funcs);
+	}
+
+	// Does a Call match its callee's params, and does the callee
+	// return a value on every path, if the Call wants one?
+	//
+	static boolean canInline(IR1.Call c, IR1.Func callee) {
+		if (c.args.length != callee.params.length)
+			return false;
+		if (c.rdst == null)
+			return true;
+		IR1.Inst[] code = callee.code;
+		if (code.length == 0 || !(code[code.length - 1] instanceof IR1.Return))
+			return false;
+		for (IR1.Inst n : code) {
+			if (n instanceof IR1.Return && ((IR1.Return) n).val == null)
+				return false;
+		}
+		return true;
+	}
+
+	static boolean returnsValue(IR1.Func f) {
+		for (IR1.Inst n : f.code) {
+			if (n instanceof IR1.Return && ((IR1.Return) n).val != null)
+				return true;
+		}
+		return false;
+	}
+
+	// The functions whose result is used: those some Call keeps the
+	// result of, and those called before a bare return in a function
+	// whose result is used.
+	//
+	static HashSet<String> resultUsed(IR1.Program p) throws Exception {
+		HashSet<String> used = new HashSet<>();
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (IR1.Func f : p.funcs) {
+				boolean[] bare = used.contains(f.gname.s) ? reachesBareReturn(f) : null;
+				for (int i = 0; i < f.code.length; i++) {
+					if (f.code[i] instanceof IR1.Call) {
+						IR1.Call c = (IR1.Call) f.code[i];
+						if (c.rdst != null || bare != null && bare[i + 1])
+							changed |= used.add(c.gname.s);
+					}
+				}
+			}
+		}
+		return used;
+	}
+
+	// Which insts may reach a bare return, or the end, in 'f'.
+	//
+	static boolean[] reachesBareReturn(IR1.Func f) throws Exception {
+		IR1.Inst[] code = f.code;
+		HashMap<String, Integer> labels = labels(f);
+		boolean[] bare = new boolean[code.length + 1];
+		bare[code.length] = true;
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = code.length - 1; i >= 0; i--) {
+				boolean b = code[i] instanceof IR1.Return && ((IR1.Return) code[i]).val == null;
+				for (int s : succs(code, i, labels))
+					b |= bare[s];
+				if (b && !bare[i])
+					bare[i] = changed = true;
+			}
+		}
+		return bare;
+	}
+
+	// Append a copy of 'callee' standing in for 'c' to 'out', using
+	// Temps numbered after 'temps'. Answers the last Temp number used.
+	//
+	static int inline(IR1.Call c, IR1.Func callee, int site, int temps,
+	                  ArrayList<IR1.Inst> out) {
+		HashMap<IR1.Src, IR1.Src> vars = new HashMap<>();
+		for (IR1.Id v : callee.params)
+			vars.put(v, new IR1.Temp(++temps));
+		for (IR1.Inst n : callee.code) {
+			for (IR1.Src v : vars(n)) {
+				if (!vars.containsKey(v))
+					vars.put(v, new IR1.Temp(++temps));
+			}
+		}
+		UnaryOperator<IR1.Src> var = v -> vars.getOrDefault(v, v);
+		UnaryOperator<IR1.Label> label = l -> new IR1.Label(l.name + "$" + site);
+		IR1.Label end = new IR1.Label(callee.gname.s + "$" + site);
+
+		for (int i = 0; i < callee.params.length; i++)
+			out.add(new IR1.Move((IR1.Dest) var.apply(callee.params[i]), c.args[i]));
+		for (IR1.Inst n : callee.code) {
+			IR1.Inst m = relabel(rename(n, var), label);
+			if (m instanceof IR1.Return) {
+				IR1.Return r = (IR1.Return) m;
+				if (c.rdst != null)
+					out.add(new IR1.Move(c.rdst, r.val));
+				out.add(new IR1.Jump(end));
+			} else {
+				out.add(m);
+			}
+		}
+		out.add(new IR1.LabelDec(end));
+		return temps;
+	}
+
+	// Is 'f' a leaf, calling nothing but intrinsics?
+	//
+	static boolean isLeaf(IR1.Func f) {
+		for (IR1.Inst n : f.code) {
+			if (n instanceof IR1.Call && IR1Intrinsic.lookup(((IR1.Call) n).gname.s) == null)
+				return false;
+		}
+		return true;
+	}
+
+	static int size(IR1.Func f) {
+		int size = 0;
+		for (IR1.Inst n : f.code) {
+			if (!(n instanceof IR1.LabelDec))
+				size++;
+		}
+		return size;
+	}
+
+	//-----------------------------------------------------------------
+	// Constant Folding and Constant/Copy Propagation
+	//-----------------------------------------------------------------
+	//
+	// A forward dataflow pass over the inst-level flow graph. The fact
+	// at each point maps a variable to what it is known to hold: a
+	// literal, or another variable it is a copy of. Uses are rewritten
+	// with what is known, literal Binops/Unops become Moves, and CJumps
+	// on literals become a Jump or disappear. Repeats until nothing
+	// changes, since removing a branch can expose more constants.
+	//
+	static IR1.Func propagate(IR1.Func f) throws Exception {
+		boolean changed = true;
+		for (int round = 0; changed && round < MAX_ROUNDS; round++) {
+			IR1.Inst[] code = f.code;
+			Set<IR1.Src> ints = ints(f);
+			List<Map<IR1.Src, IR1.Src>> in = facts(f, ints);
+			ArrayList<IR1.Inst> out = new ArrayList<>();
+			changed = false;
+			for (int i = 0; i < code.length; i++) {
+				IR1.Inst n = code[i];
+				// Unreachable code is left alone
+				IR1.Inst m = in.get(i) == null ? n : rewrite(n, in.get(i), ints);
+				if (m != n)
+					changed = true;
+				if (m != null)
+					out.add(m);
+			}
+			f = new IR1.Func(f.gname, f.params, f.locals, out.toArray(new IR1.Inst[0]));
+		}
+		return f;
+	}
+
+	// The fact on entry to each inst; null where it is unreachable.
+	//
+	static List<Map<IR1.Src, IR1.Src>> facts(IR1.Func f, Set<IR1.Src> ints) throws Exception {
+		IR1.Inst[] code = f.code;
+		HashMap<String, Integer> labels = labels(f);
+		List<Map<IR1.Src, IR1.Src>> in = new ArrayList<>(Collections.nCopies(code.length + 1, null));
+		ArrayDeque<Integer> work = new ArrayDeque<>();
+		in.set(0, new HashMap<>());
+		work.add(0);
+		while (!work.isEmpty()) {
+			int i = work.remove();
+			if (i >= code.length)
+				continue;
+			Map<IR1.Src, IR1.Src> fact = new HashMap<>(in.get(i));
+			transfer(code[i], fact, ints);
+			for (int s : succs(code, i, labels)) {
+				Map<IR1.Src, IR1.Src> old = in.get(s);
+				Map<IR1.Src, IR1.Src> met = old == null ? fact : meet(old, fact);
+				if (old == null || !met.equals(old)) {
+					in.set(s, met);
+					work.add(s);
+				}
+			}
+		}
+		return in;
+	}
+
+	// Keep only what both facts agree on.
+	//
+	static Map<IR1.Src, IR1.Src> meet(Map<IR1.Src, IR1.Src> a, Map<IR1.Src, IR1.Src> b) {
+		HashMap<IR1.Src, IR1.Src> m = new HashMap<>();
+		for (Map.Entry<IR1.Src, IR1.Src> e : a.entrySet()) {
+			IR1.Src v = b.get(e.getKey());
+			if (v != null && same(v, e.getValue()))
+				m.put(e.getKey(), e.getValue());
+		}
+		// Map.equals() compares literal nodes by identity, so keep a's
+		// nodes where possible to let the fixed point settle
+		return m.size() == a.size() ? a : m;
+	}
+
+	static void transfer(IR1.Inst n, Map<IR1.Src, IR1.Src> fact, Set<IR1.Src> ints) {
+		IR1.Dest d = def(n);
+		if (d == null)
+			return;
+		IR1.Src value = null;
+		if (n instanceof IR1.Move)
+			value = lookup(((IR1.Move) n).src, fact);
+		else if (n instanceof IR1.Binop)
+			value = fold((IR1.Binop) n, fact, ints);
+		else if (n instanceof IR1.Unop)
+			value = fold((IR1.Unop) n, fact);
+		kill((IR1.Src) d, fact);
+		if (value != null && !same(value, (IR1.Src) d))
+			fact.put((IR1.Src) d, value);
+	}
+
+	// 'v' is redefined: forget its value and any copies of it.
+	//
+	static void kill(IR1.Src v, Map<IR1.Src, IR1.Src> fact) {
+		fact.remove(v);
+		fact.values().removeIf(x -> same(x, v));
+	}
+
+	static IR1.Src lookup(IR1.Src s, Map<IR1.Src, IR1.Src> fact) {
+		IR1.Src v = fact.get(s);
+		return v == null ? s : v;
+	}
+
+	// Rewrite an inst's uses with the fact; answers the inst itself if
+	// nothing changed, or null if it should be dropped.
+	//
+	static IR1.Inst rewrite(IR1.Inst n, Map<IR1.Src, IR1.Src> fact, Set<IR1.Src> ints) {
+		IR1.Inst m = mapUses(n, s -> lookup(s, fact));
+		if (m instanceof IR1.Binop) {
+			IR1.Src v = fold((IR1.Binop) m, Collections.emptyMap(), ints);
+			if (v != null)
+				return new IR1.Move(((IR1.Binop) m).dst, v);
+		} else if (m instanceof IR1.Unop) {
+			IR1.Src v = fold((IR1.Unop) m, Collections.emptyMap());
+			if (v != null)
+				return new IR1.Move(((IR1.Unop) m).dst, v);
+		} else if (m instanceof IR1.CJump) {
+			IR1.CJump j = (IR1.CJump) m;
+			Boolean taken = compare(j.op, j.src1, j.src2);
+			if (taken != null)
+				return taken ? new IR1.Jump(j.lab) : null;
+		}
+		return m;
+	}
+
+	//-----------------------------------------------------------------
+	// Scalar Replacement
+	//-----------------------------------------------------------------
+	//
+	// A block from '_malloc(n)', n a literal no more than SCALAR_SIZE,
+	// that never escapes is replaced by one fresh Temp per word used.
+	// The block's pointer, and every variable derived from it by adding
+	// or subtracting literals (or copying), must have exactly one def
+	// and be used only as the base of a Load or Store address, so every
+	// access is at a known offset. Accesses then become Moves to and
+	// from the Temps, and the _malloc and the pointer arithmetic go.
+	//
+	// A new block reads as undefined, and so does a Temp on entry. If
+	// the _malloc can run again in the same call (it is on a cycle), it
+	// becomes Moves that reset the Temps from a Temp that is never
+	// written; no pointer into the last block may be live across it.
+	// Accesses must be inside the block (and aligned, with
+	// -words); a block accessed any other way is left for the heap to
+	// check.
+	//
+	static final int SCALAR_SIZE = 64;
+
+	static IR1.Func scalarize(IR1.Func f) throws Exception {
+		IR1.Inst[] code = f.code;
+		HashMap<String, Integer> labels = labels(f);
+		HashMap<IR1.Src, Integer> defs = new HashMap<>();
+		int temps = 0;
+		for (IR1.Inst n : code) {
+			IR1.Dest d = def(n);
+			if (d != null)
+				defs.merge((IR1.Src) d, 1, Integer::sum);
+			for (IR1.Src v : vars(n)) {
+				if (v instanceof IR1.Temp)
+					temps = Math.max(temps, ((IR1.Temp) v).num);
+			}
+		}
+		for (IR1.Id p : f.params)
+			defs.merge(p, 1, Integer::sum);
+		List<Set<IR1.Src>> liveOut = null;
+		HashMap<IR1.Inst, List<IR1.Inst>> replaced = new HashMap<>();
+		IR1.Temp undef = null;
+		int blocks = 0, fields = 0;
+		for (int i = 0; i < code.length; i++) {
+			if (!(code[i] instanceof IR1.Call))
+				continue;
+			IR1.Call c = (IR1.Call) code[i];
+			if (!c.gname.s.equals("_malloc") || c.rdst == null || c.args.length != 1
+					|| !(c.args[0] instanceof IR1.IntLit) || ((IR1.IntLit) c.args[0]).i > SCALAR_SIZE
+					|| defs.get((IR1.Src) c.rdst) != 1)
+				continue;
+			int size = ((IR1.IntLit) c.args[0]).i;
+			HashMap<IR1.Src, Integer> offsets = pointers(code, (IR1.Src) c.rdst, defs);
+			TreeMap<Integer, IR1.Temp> words = new TreeMap<>();
+			if (!accesses(code, offsets, size, words))
+				continue;
+			boolean again = onCycle(code, i, labels);
+			if (again) {
+				if (liveOut == null)
+					liveOut = liveness(code, labels);
+				Set<IR1.Src> live = liveOut.get(i);
+				if (offsets.keySet().stream().anyMatch(v -> !v.equals(c.rdst) && live.contains(v)))
+					continue;
+			}
+			ArrayList<IR1.Inst> reset = new ArrayList<>();
+			for (Map.Entry<Integer, IR1.Temp> e : words.entrySet()) {
+				e.setValue(new IR1.Temp(++temps));
+				if (again) {
+					if (undef == null)
+						undef = new IR1.Temp(++temps);
+					reset.add(new IR1.Move(e.getValue(), undef));
+				}
+			}
+			replaced.put(c, reset);
+			// Rewrite the block's insts
+			for (IR1.Inst n : code) {
+				IR1.Dest d = def(n);
+				if (n != c && d != null && offsets.containsKey((IR1.Src) d)) {
+					replaced.put(n, Collections.emptyList());
+				} else if (n instanceof IR1.Load && offsets.containsKey(((IR1.Load) n).addr.base)) {
+					IR1.Load l = (IR1.Load) n;
+					IR1.Temp w = words.get(offsets.get(l.addr.base) + l.addr.offset);
+					replaced.put(n, Collections.singletonList(new IR1.Move(l.dst, w)));
+				} else if (n instanceof IR1.Store && offsets.containsKey(((IR1.Store) n).addr.base)) {
+					IR1.Store st = (IR1.Store) n;
+					IR1.Temp w = words.get(offsets.get(st.addr.base) + st.addr.offset);
+					replaced.put(n, Collections.singletonList(new IR1.Move(w, st.src)));
+				}
+			}
+			blocks++;
+			fields += words.size();
+		}
+		if (blocks == 0)
+			return f;
+		ArrayList<IR1.Inst> out = new ArrayList<>();
+		for (IR1.Inst n : code) {
+			if (replaced.containsKey(n))
+				out.addAll(replaced.get(n));
+			else
+				out.add(n);
+		}
+		report(f, "replaced " + blocks + " blocks with " + fields + " variables");
+		return new IR1.Func(f.gname, f.params, f.locals, out.toArray(new IR1.Inst[0]));
+	}
+
+	// The pointer 'p' and every variable derived from it, each with its
+	// offset from 'p'. Only single-def, non-param variables qualify.
+	//
+	static HashMap<IR1.Src, Integer> pointers(IR1.Inst[] code, IR1.Src p, HashMap<IR1.Src, Integer> defs) {
+		HashMap<IR1.Src, Integer> offsets = new HashMap<>();
+		offsets.put(p, 0);
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (IR1.Inst n : code) {
+				IR1.Dest d = def(n);
+				if (d == null || offsets.containsKey((IR1.Src) d) || defs.get((IR1.Src) d) != 1)
+					continue;
+				Integer off = null;
+				if (n instanceof IR1.Move) {
+					off = offsets.get(((IR1.Move) n).src);
+				} else if (n instanceof IR1.Binop) {
+					IR1.Binop b = (IR1.Binop) n;
+					Integer x = offsets.get(b.src1), y = offsets.get(b.src2);
+					if (b.op == IR1.AOP.ADD && x != null && b.src2 instanceof IR1.IntLit)
+						off = x + ((IR1.IntLit) b.src2).i;
+					else if (b.op == IR1.AOP.ADD && y != null && b.src1 instanceof IR1.IntLit)
+						off = y + ((IR1.IntLit) b.src1).i;
+					else if (b.op == IR1.AOP.SUB && x != null && b.src2 instanceof IR1.IntLit)
+						off = x - ((IR1.IntLit) b.src2).i;
+				}
+				if (off != null) {
+					offsets.put((IR1.Src) d, off);
+					changed = true;
+				}
+			}
+		}
+		return offsets;
+	}
+
+	// Are the pointers in 'offsets' used only to derive each other and
+	// as the base of in-bounds Loads and Stores? Collects the offsets
+	// accessed into 'words'.
+	//
+	static boolean accesses(IR1.Inst[] code, HashMap<IR1.Src, Integer> offsets, int size,
+	                        TreeMap<Integer, IR1.Temp> words) {
+		for (IR1.Inst n : code) {
+			IR1.Dest d = def(n);
+			IR1.Addr addr = null;
+			if (n instanceof IR1.Load) {
+				addr = ((IR1.Load) n).addr;
+			} else if (n instanceof IR1.Store) {
+				addr = ((IR1.Store) n).addr;
+				if (offsets.containsKey(((IR1.Store) n).src))
+					return false;
+			} else if (d != null && offsets.containsKey((IR1.Src) d)) {
+				continue;
+			} else {
+				for (IR1.Src u : uses(n)) {
+					if (offsets.containsKey(u))
+						return false;
+				}
+				continue;
+			}
+			Integer base = offsets.get(addr.base);
+			if (base == null)
+				continue;
+			int off = base + addr.offset;
+			if (off < 0 || off >= size || IR1Interp.wordAddressed && (off & 3) != 0)
+				return false;
+			words.put(off, null);
+		}
+		return true;
+	}
+
+	// Can inst i be reached again after it runs?
+	//
+	static boolean onCycle(IR1.Inst[] code, int i, HashMap<String, Integer> labels) throws Exception {
+		boolean[] seen = new boolean[code.length + 1];
+		ArrayDeque<Integer> work = new ArrayDeque<>();
+		work.add(i);
+		while (!work.isEmpty()) {
+			int j = work.remove();
+			if (j >= code.length)
+				continue;
+			for (int s : succs(code, j, labels)) {
+				if (s == i)
+					return true;
+				if (!seen[s]) {
+					seen[s] = true;
+					work.add(s);
+				}
+			}
+		}
+		return false;
+	}
+
+	//-----------------------------------------------------------------
+	// Store-to-Load Forwarding
+	//-----------------------------------------------------------------
+	//
+	// A forward dataflow pass like propagate's, but over memory. The
+	// fact at each point maps a heap location to an operand known to
+	// hold its value: a Store records what it stored, and a Load what
+	// it loaded. A Load from a known location becomes a Move.
+	//
+	// A location is a root variable plus a literal offset. The fact
+	// also follows variables derived from a root by adding or
+	// subtracting literals (or copying), so 't16 = a + 4' and
+	// 't20 = a + 4' name the same word. Redefining a root forgets all
+	// that depends on it. Two locations with the same root and
+	// different offsets are disjoint, and so are two locations inside
+	// blocks that each came straight from a _malloc of a literal size
+	// (one past the end may be the next block). Any other pair may
+	// alias, so a Store forgets them. A Call forgets all memory, unless it's to
+	// an intrinsic that doesn't store.
+	//
+	static final class Loc {
+		final IR1.Src root;    // null for a literal address
+		final int offset;
+
+		Loc(IR1.Src root, int offset) {
+			this.root = root;
+			this.offset = offset;
+		}
+
+		public boolean equals(Object o) {
+			return o instanceof Loc && Objects.equals(((Loc) o).root, root) && ((Loc) o).offset == offset;
+		}
+
+		public int hashCode() {
+			return Objects.hashCode(root) * 31 + offset;
+		}
+	}
+
+	static final class MemFact {
+		HashMap<IR1.Src, Loc> addrs = new HashMap<>();    // derived variables
+		HashMap<IR1.Src, Integer> fresh = new HashMap<>(); // _malloc results -> size
+		HashMap<Loc, IR1.Src> mem = new HashMap<>();      // known words
+
+		MemFact copy() {
+			MemFact m = new MemFact();
+			m.addrs.putAll(addrs);
+			m.fresh.putAll(fresh);
+			m.mem.putAll(mem);
+			return m;
+		}
+
+		public boolean equals(Object o) {
+			return o instanceof MemFact && ((MemFact) o).addrs.equals(addrs)
+					&& ((MemFact) o).fresh.equals(fresh) && ((MemFact) o).mem.equals(mem);
+		}
+
+		public int hashCode() {
+			return mem.hashCode();
+		}
+
+		// The location an operand, used as an address, points to.
+		//
+		Loc locate(IR1.Src s, int offset) {
+			if (s instanceof IR1.IntLit)
+				return new Loc(null, ((IR1.IntLit) s).i + offset);
+			Loc l = addrs.get(s);
+			return l == null ? new Loc(s, offset) : new Loc(l.root, l.offset + offset);
+		}
+	}
+
+	static IR1.Func forward(IR1.Func f) throws Exception {
+		IR1.Inst[] code = f.code;
+		MemFact[] in = memFacts(f);
+		ArrayList<IR1.Inst> out = new ArrayList<>();
+		int forwarded = 0;
+		for (int i = 0; i < code.length; i++) {
+			IR1.Inst n = code[i];
+			if (n instanceof IR1.Load && in[i] != null) {
+				IR1.Load l = (IR1.Load) n;
+				IR1.Src v = in[i].mem.get(in[i].locate(l.addr.base, l.addr.offset));
+				if (v != null) {
+					n = new IR1.Move(l.dst, v);
+					forwarded++;
+				}
+			}
+			out.add(n);
+		}
+		if (forwarded == 0)
+			return f;
+		report(f, "forwarded " + forwarded + " loads");
+		return new IR1.Func(f.gname, f.params, f.locals, out.toArray(new IR1.Inst[0]));
+	}
+
+	// The fact on entry to each inst; null where it is unreachable.
+	//
+	static MemFact[] memFacts(IR1.Func f) throws Exception {
+		IR1.Inst[] code = f.code;
+		HashMap<String, Integer> labels = labels(f);
+		MemFact[] in = new MemFact[code.length + 1];
+		ArrayDeque<Integer> work = new ArrayDeque<>();
+		in[0] = new MemFact();
+		work.add(0);
+		while (!work.isEmpty()) {
+			int i = work.remove();
+			if (i >= code.length)
+				continue;
+			MemFact fact = in[i].copy();
+			memTransfer(code[i], fact);
+			for (int s : succs(code, i, labels)) {
+				MemFact old = in[s];
+				MemFact met = old == null ? fact : memMeet(old, fact);
+				if (old == null || !met.equals(old)) {
+					in[s] = met;
+					work.add(s);
+				}
+			}
+		}
+		return in;
+	}
+
+	// Keep only what both facts agree on; answers 'a' if that's all of
+	// it (see meet).
+	//
+	static MemFact memMeet(MemFact a, MemFact b) {
+		MemFact m = new MemFact();
+		for (Map.Entry<IR1.Src, Loc> e : a.addrs.entrySet()) {
+			if (e.getValue().equals(b.addrs.get(e.getKey())))
+				m.addrs.put(e.getKey(), e.getValue());
+		}
+		for (Map.Entry<IR1.Src, Integer> e : a.fresh.entrySet()) {
+			if (e.getValue().equals(b.fresh.get(e.getKey())))
+				m.fresh.put(e.getKey(), e.getValue());
+		}
+		for (Map.Entry<Loc, IR1.Src> e : a.mem.entrySet()) {
+			IR1.Src v = b.mem.get(e.getKey());
+			if (v != null && same(v, e.getValue()))
+				m.mem.put(e.getKey(), e.getValue());
+		}
+		return m.addrs.size() == a.addrs.size() && m.fresh.size() == a.fresh.size()
+				&& m.mem.size() == a.mem.size() ? a : m;
+	}
+
+	static void memTransfer(IR1.Inst n, MemFact fact) {
+		if (n instanceof IR1.Store) {
+			IR1.Store st = (IR1.Store) n;
+			Loc loc = fact.locate(st.addr.base, st.addr.offset);
+			fact.mem.keySet().removeIf(l -> mayAlias(l, loc, fact));
+			fact.mem.put(loc, st.src);
+			return;
+		}
+		if (n instanceof IR1.Call) {
+			IR1Intrinsic in = IR1Intrinsic.lookup(((IR1.Call) n).gname.s);
+			if (in == null || in.stores)
+				fact.mem.clear();
+		}
+		IR1.Dest d = def(n);
+		if (d == null)
+			return;
+		IR1.Src v = (IR1.Src) d;
+		// What 'v' will hold, worked out before its old value goes
+		Loc addr = null, loaded = null;
+		if (n instanceof IR1.Load) {
+			IR1.Load l = (IR1.Load) n;
+			loaded = fact.locate(l.addr.base, l.addr.offset);
+		} else if (n instanceof IR1.Move && isVar(((IR1.Move) n).src)) {
+			addr = fact.locate(((IR1.Move) n).src, 0);
+		} else if (n instanceof IR1.Binop) {
+			IR1.Binop b = (IR1.Binop) n;
+			if (b.op == IR1.AOP.ADD && isVar(b.src1) && b.src2 instanceof IR1.IntLit)
+				addr = fact.locate(b.src1, ((IR1.IntLit) b.src2).i);
+			else if (b.op == IR1.AOP.ADD && isVar(b.src2) && b.src1 instanceof IR1.IntLit)
+				addr = fact.locate(b.src2, ((IR1.IntLit) b.src1).i);
+			else if (b.op == IR1.AOP.SUB && isVar(b.src1) && b.src2 instanceof IR1.IntLit)
+				addr = fact.locate(b.src1, -((IR1.IntLit) b.src2).i);
+		}
+		fact.addrs.remove(v);
+		fact.addrs.values().removeIf(l -> v.equals(l.root));
+		fact.fresh.remove(v);
+		fact.mem.entrySet().removeIf(e -> v.equals(e.getKey().root) || same(e.getValue(), v));
+		if (addr != null && !v.equals(addr.root))
+			fact.addrs.put(v, addr);
+		if (loaded != null && !v.equals(loaded.root))
+			fact.mem.put(loaded, v);
+		if (n instanceof IR1.Call && ((IR1.Call) n).gname.s.equals("_malloc")
+				&& ((IR1.Call) n).args.length == 1 && ((IR1.Call) n).args[0] instanceof IR1.IntLit)
+			fact.fresh.put(v, ((IR1.IntLit) ((IR1.Call) n).args[0]).i);
+	}
+
+	static boolean mayAlias(Loc a, Loc b, MemFact fact) {
+		if (Objects.equals(a.root, b.root))
+			return a.offset == b.offset;
+		return !(inBlock(a, fact) && inBlock(b, fact));
+	}
+
+	static boolean inBlock(Loc l, MemFact fact) {
+		Integer size = fact.fresh.get(l.root);
+		return size != null && l.offset >= 0 && l.offset < size;
+	}
+
+	//-----------------------------------------------------------------
+	// Dead Store and Unreachable Code Elimination
+	//-----------------------------------------------------------------
+	//
+	// Removes, until nothing more goes:
+	//  - insts no path from the entry reaches
+	//  - pure insts whose dst is dead afterwards (e.g. 't11 = true'
+	//    just before 't11 = t12')
+	//  - gotos to the very next inst, and LabelDecs nothing jumps to
+	//
+	static IR1.Func eliminate(IR1.Func f) throws Exception {
+		int unreachable = 0, dead = 0, jumps = 0;
+		int before = f.code.length;
+		for (int round = 0; round < MAX_ROUNDS; round++) {
+			IR1.Inst[] code = f.code;
+			HashMap<String, Integer> labels = labels(f);
+			boolean[] reached = reachable(code, labels);
+			List<Set<IR1.Src>> liveOut = liveness(code, labels);
+			Set<IR1.Src> ints = ints(f);
+			HashSet<String> targets = new HashSet<>();
+			ArrayList<IR1.Inst> out = new ArrayList<>();
+			for (int i = 0; i < code.length; i++) {
+				IR1.Inst n = code[i];
+				if (!reached[i]) {
+					unreachable++;
+				} else if (isPure(n, ints) && !liveOut.get(i).contains((IR1.Src) def(n))) {
+					dead++;
+				} else if (n instanceof IR1.Jump && jumpsToNext(code, i, ((IR1.Jump) n).lab)) {
+					jumps++;
+				} else {
+					out.add(n);
+					if (n instanceof IR1.Jump)
+						targets.add(((IR1.Jump) n).lab.name);
+					else if (n instanceof IR1.CJump)
+						targets.add(((IR1.CJump) n).lab.name);
+				}
+			}
+			out.removeIf(n -> n instanceof IR1.LabelDec && !targets.contains(((IR1.LabelDec) n).lab.name));
+			if (out.size() == code.length)
+				break;
+			f = new IR1.Func(f.gname, f.params, f.locals, out.toArray(new IR1.Inst[0]));
+		}
+		if (f.code.length < before)
+			report(f, "removed " + (before - f.code.length) + " insts (" + dead + " dead stores, "
+					+ unreachable + " unreachable, " + jumps + " jumps to next, "
+					+ (before - f.code.length - dead - unreachable - jumps) + " unused labels)");
+		return f;
+	}
+
+	// Insts that do nothing but write their dst. An operator on the
+	// wrong type of value raises an error, so a Unop or Binop is only
+	// pure if its operands are known to be ints ('ints', or literals)
+	// or bool literals, as the operator needs. A division is only pure
+	// if it can't divide by zero, and a call only if it is to a pure
+	// intrinsic.
+	//
+	static boolean isPure(IR1.Inst n, Set<IR1.Src> ints) {
+		if (n instanceof IR1.Move)
+			return true;
+		if (n instanceof IR1.Unop) {
+			IR1.Unop u = (IR1.Unop) n;
+			return u.op == IR1.UOP.NEG ? isIntSrc(u.src, ints) : u.src instanceof IR1.BoolLit;
+		}
+		if (n instanceof IR1.Binop) {
+			IR1.Binop b = (IR1.Binop) n;
+			boolean bothInts = isIntSrc(b.src1, ints) && isIntSrc(b.src2, ints);
+			boolean bothBools = b.src1 instanceof IR1.BoolLit && b.src2 instanceof IR1.BoolLit;
+			if (b.op == IR1.AOP.AND || b.op == IR1.AOP.OR)
+				return bothBools;
+			if (b.op == IR1.ROP.EQ || b.op == IR1.ROP.NE)
+				return bothInts || bothBools;
+			if (b.op == IR1.AOP.DIV)
+				return bothInts && b.src2 instanceof IR1.IntLit && ((IR1.IntLit) b.src2).i != 0;
+			return bothInts;
+		}
+		if (n instanceof IR1.Call) {
+			IR1.Call c = (IR1.Call) n;
+			IR1Intrinsic in = IR1Intrinsic.lookup(c.gname.s);
+			return c.rdst != null && in != null && in.pure && c.args.length == in.arity;
+		}
+		return false;
+	}
+
+	// Is there nothing but LabelDecs between inst i and 'lab'?
+	//
+	static boolean jumpsToNext(IR1.Inst[] code, int i, IR1.Label lab) {
+		for (int j = i + 1; j < code.length && code[j] instanceof IR1.LabelDec; j++) {
+			if (((IR1.LabelDec) code[j]).lab.name.equals(lab.name))
+				return true;
+		}
+		return false;
+	}
+
+	static boolean[] reachable(IR1.Inst[] code, HashMap<String, Integer> labels) throws Exception {
+		boolean[] reached = new boolean[code.length + 1];
+		ArrayDeque<Integer> work = new ArrayDeque<>();
+		work.add(0);
+		reached[0] = true;
+		while (!work.isEmpty()) {
+			int i = work.remove();
+			if (i >= code.length)
+				continue;
+			for (int s : succs(code, i, labels)) {
+				if (!reached[s]) {
+					reached[s] = true;
+					work.add(s);
+				}
+			}
+		}
+		return reached;
+	}
+
+	//-----------------------------------------------------------------
+	// Liveness
+	//-----------------------------------------------------------------
+	//
+	// Backward dataflow: the variables live on exit from each inst.
+	// Every variable is local to its function, so nothing is live at
+	// the end.
+	//
+	static List<Set<IR1.Src>> liveness(IR1.Inst[] code, HashMap<String, Integer> labels) throws Exception {
+		ArrayList<Set<IR1.Src>> in = new ArrayList<>(), out = new ArrayList<>();
+		int[][] succs = new int[code.length][];
+		ArrayList<List<Integer>> preds = new ArrayList<>();
+		for (int i = 0; i <= code.length; i++) {
+			in.add(new HashSet<>());
+			out.add(new HashSet<>());
+			preds.add(new ArrayList<>());
+		}
+		for (int i = 0; i < code.length; i++) {
+			succs[i] = succs(code, i, labels);
+			for (int s : succs[i])
+				preds.get(s).add(i);
+		}
+		ArrayDeque<Integer> work = new ArrayDeque<>();
+		for (int i = code.length - 1; i >= 0; i--)
+			work.add(i);
+		while (!work.isEmpty()) {
+			int i = work.remove();
+			Set<IR1.Src> o = out.get(i);
+			for (int s : succs[i])
+				o.addAll(in.get(s));
+			HashSet<IR1.Src> live = new HashSet<>(o);
+			IR1.Dest d = def(code[i]);
+			if (d != null)
+				live.remove((IR1.Src) d);
+			for (IR1.Src u : uses(code[i])) {
+				if (isVar(u))
+					live.add(u);
+			}
+			if (!live.equals(in.get(i))) {
+				in.set(i, live);
+				work.addAll(preds.get(i));
+			}
+		}
+		return out.subList(0, code.length);
+	}
+
+	//-----------------------------------------------------------------
+	// Interference, Coalescing and Slot Allocation
+	//-----------------------------------------------------------------
+	//
+	// Two variables interfere if one is written while the other is
+	// live (except for the two sides of a Move, which hold the same
+	// value). Params all interfere with each other, since the caller
+	// fills them all in. A variable that is live on entry without being
+	// a param holds "undefined" from the start, so it interferes with
+	// everything.
+	//
+	static HashMap<IR1.Src, Set<IR1.Src>> interference(IR1.Func f) throws Exception {
+		IR1.Inst[] code = f.code;
+		HashMap<String, Integer> labels = labels(f);
+		List<Set<IR1.Src>> liveOut = liveness(code, labels);
+		LinkedHashMap<IR1.Src, Set<IR1.Src>> graph = new LinkedHashMap<>();
+		for (IR1.Id p : f.params)
+			graph.put(p, new HashSet<>());
+		for (IR1.Inst n : code) {
+			IR1.Dest d = def(n);
+			if (d != null)
+				graph.putIfAbsent((IR1.Src) d, new HashSet<>());
+			for (IR1.Src u : uses(n)) {
+				if (isVar(u))
+					graph.putIfAbsent(u, new HashSet<>());
+			}
+		}
+		for (int i = 0; i < code.length; i++) {
+			IR1.Src d = (IR1.Src) def(code[i]);
+			if (d == null)
+				continue;
+			IR1.Src copy = code[i] instanceof IR1.Move ? ((IR1.Move) code[i]).src : null;
+			for (IR1.Src v : liveOut.get(i)) {
+				if (!v.equals(d) && !v.equals(copy))
+					interfere(graph, d, v);
+			}
+		}
+		for (IR1.Id p : f.params) {
+			for (IR1.Id q : f.params) {
+				if (!p.equals(q))
+					interfere(graph, p, q);
+			}
+		}
+		for (IR1.Src v : liveOnEntry(f, liveOut)) {
+			for (IR1.Src w : graph.keySet()) {
+				if (!v.equals(w))
+					interfere(graph, v, w);
+			}
+		}
+		return graph;
+	}
+
+	// The non-param variables of a function that are read before
+	// being written.
+	//
+	static Set<IR1.Src> liveOnEntry(IR1.Func f) throws Exception {
+		return liveOnEntry(f, liveness(f.code, labels(f)));
+	}
+
+	static Set<IR1.Src> liveOnEntry(IR1.Func f, List<Set<IR1.Src>> liveOut) {
+		// Whatever the entry inst needs, plus what flows through it
+		Set<IR1.Src> entry = new HashSet<>();
+		if (f.code.length > 0) {
+			entry.addAll(liveOut.get(0));
+			IR1.Dest d = def(f.code[0]);
+			if (d != null)
+				entry.remove((IR1.Src) d);
+			for (IR1.Src u : uses(f.code[0])) {
+				if (isVar(u))
+					entry.add(u);
+			}
+		}
+		for (IR1.Id p : f.params)
+			entry.remove(p);
+		return entry;
+	}
+
+	static void interfere(HashMap<IR1.Src, Set<IR1.Src>> graph, IR1.Src a, IR1.Src b) {
+		graph.get(a).add(b);
+		graph.get(b).add(a);
+	}
+
+	// Coalesce 'd = s' Moves whose sides don't interfere, by renaming
+	// one side to the other; the Move then copies a variable to itself
+	// and is dropped. Params keep their names, and two params are never
+	// merged.
+	//
+	static IR1.Func coalesce(IR1.Func f) throws Exception {
+		HashMap<IR1.Src, Set<IR1.Src>> graph = interference(f);
+		HashSet<IR1.Src> params = new HashSet<>(Arrays.asList(f.params));
+		HashMap<IR1.Src, IR1.Src> renamed = new HashMap<>();
+		int merged = 0;
+		for (IR1.Inst n : f.code) {
+			if (!(n instanceof IR1.Move) || !isVar(((IR1.Move) n).src))
+				continue;
+			IR1.Src d = find(renamed, (IR1.Src) ((IR1.Move) n).dst);
+			IR1.Src s = find(renamed, ((IR1.Move) n).src);
+			if (d.equals(s) || graph.get(d).contains(s) || (params.contains(d) && params.contains(s)))
+				continue;
+			// Keep the param (if any), otherwise keep the dst
+			IR1.Src keep = params.contains(s) ? s : d, gone = keep == s ? d : s;
+			renamed.put(gone, keep);
+			for (IR1.Src v : graph.remove(gone)) {
+				graph.get(v).remove(gone);
+				interfere(graph, keep, v);
+			}
+			merged++;
+		}
+		if (merged == 0)
+			return f;
+		ArrayList<IR1.Inst> out = new ArrayList<>();
+		for (IR1.Inst n : f.code) {
+			IR1.Inst m = rename(n, v -> find(renamed, v));
+			if (!(m instanceof IR1.Move && same(((IR1.Move) m).src, (IR1.Src) ((IR1.Move) m).dst)))
+				out.add(m);
+		}
+		report(f, "coalesced " + merged + " moves");
+		return new IR1.Func(f.gname, f.params, f.locals, out.toArray(new IR1.Inst[0]));
+	}
+
+	static IR1.Src find(HashMap<IR1.Src, IR1.Src> renamed, IR1.Src v) {
+		IR1.Src r;
+		while ((r = renamed.get(v)) != null)
+			v = r;
+		return v;
+	}
+
+	// Give every variable in a function a frame slot, sharing slots
+	// between variables that don't interfere. Params take slots
+	// 0..n-1; the rest are colored greedily in order of appearance.
+	//
+	static IR1Interp.SlotMap allocateSlots(IR1.Func f) throws Exception {
+		HashMap<IR1.Src, Set<IR1.Src>> graph = interference(f);
+		IR1Interp.SlotMap slots = new IR1Interp.SlotMap();
+		for (int i = 0; i < f.params.length; i++)
+			slots.put(f.params[i], i);
+		slots.count = f.params.length;
+		BitSet taken = new BitSet();
+		for (Map.Entry<IR1.Src, Set<IR1.Src>> e : graph.entrySet()) {
+			if (slots.containsKey(e.getKey()))
+				continue;
+			taken.clear();
+			for (IR1.Src v : e.getValue()) {
+				Integer s = slots.get(v);
+				if (s != null)
+					taken.set(s);
+			}
+			int slot = taken.nextClearBit(0);
+			slots.put(e.getKey(), slot);
+			slots.count = Math.max(slots.count, slot + 1);
+		}
+		if (slots.count < graph.size())
+			report(f, graph.size() + " variables in " + slots.count + " slots");
+		return slots;
+	}
+
+	//-----------------------------------------------------------------
+	// Folding
+	//-----------------------------------------------------------------
+	//
+	// Each answers the folded value, or null if it can't be folded.
+	// Anything that would fail at run time (type errors, division by
+	// zero) is left for run time to report.
+	//
+	static IR1.Src fold(IR1.Binop n, Map<IR1.Src, IR1.Src> fact, Set<IR1.Src> ints) {
+		IR1.Src a = lookup(n.src1, fact), b = lookup(n.src2, fact);
+		if (n.op instanceof IR1.ROP) {
+			Boolean r = compare((IR1.ROP) n.op, a, b);
+			return r == null ? null : new IR1.BoolLit(r);
+		}
+		IR1.AOP op = (IR1.AOP) n.op;
+		if (a instanceof IR1.IntLit && b instanceof IR1.IntLit) {
+			int x = ((IR1.IntLit) a).i, y = ((IR1.IntLit) b).i;
+			switch (op) {
+				case ADD:
+					return new IR1.IntLit(x + y);
+				case SUB:
+					return new IR1.IntLit(x - y);
+				case MUL:
+					return new IR1.IntLit(x * y);
+				case DIV:
+					return y == 0 ? null : new IR1.IntLit(x / y);
+				default:
+					return null;
+			}
+		}
+		if (a instanceof IR1.BoolLit && b instanceof IR1.BoolLit) {
+			boolean x = ((IR1.BoolLit) a).b, y = ((IR1.BoolLit) b).b;
+			if (op == IR1.AOP.AND)
+				return new IR1.BoolLit(x && y);
+			if (op == IR1.AOP.OR)
+				return new IR1.BoolLit(x || y);
+			return null;
+		}
+		// x + 0, 0 + x, x - 0, x * 1, 1 * x are copies of x, if x is
+		// an int (otherwise they are errors)
+		if ((op == IR1.AOP.ADD || op == IR1.AOP.SUB) && isInt(b, 0) && ints.contains(a))
+			return a;
+		if (op == IR1.AOP.ADD && isInt(a, 0) && ints.contains(b))
+			return b;
+		if (op == IR1.AOP.MUL && isInt(b, 1) && ints.contains(a))
+			return a;
+		if (op == IR1.AOP.MUL && isInt(a, 1) && ints.contains(b))
+			return b;
+		return null;
+	}
+
+	// The variables that only ever hold ints: each is written before
+	// it's read, and every def is arithmetic, an int literal, another
+	// such variable, or a _malloc. (An arithmetic Binop on anything
+	// but ints fails, or in the tree-walker gives undefined, which
+	// 'x + 0' would give too.)
+	//
+	static Set<IR1.Src> ints(IR1.Func f) throws Exception {
+		HashSet<IR1.Src> ints = new HashSet<>();
+		for (IR1.Inst n : f.code) {
+			IR1.Dest d = def(n);
+			if (d != null)
+				ints.add((IR1.Src) d);
+		}
+		ints.removeAll(Arrays.asList(f.params));
+		ints.removeAll(liveOnEntry(f));
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (IR1.Inst n : f.code) {
+				IR1.Dest d = def(n);
+				if (d != null && ints.contains((IR1.Src) d) && !isIntDef(n, ints)) {
+					ints.remove((IR1.Src) d);
+					changed = true;
+				}
+			}
+		}
+		return ints;
+	}
+
+	static boolean isIntDef(IR1.Inst n, Set<IR1.Src> ints) {
+		if (n instanceof IR1.Binop)
+			return ((IR1.Binop) n).op instanceof IR1.AOP
+					&& ((IR1.Binop) n).op != IR1.AOP.AND && ((IR1.Binop) n).op != IR1.AOP.OR;
+		if (n instanceof IR1.Move)
+			return ((IR1.Move) n).src instanceof IR1.IntLit || ints.contains(((IR1.Move) n).src);
+		return n instanceof IR1.Call && ((IR1.Call) n).gname.s.equals("_malloc");
+	}
+
+	static IR1.Src fold(IR1.Unop n, Map<IR1.Src, IR1.Src> fact) {
+		IR1.Src a = lookup(n.src, fact);
+		if (n.op == IR1.UOP.NEG && a instanceof IR1.IntLit)
+			return new IR1.IntLit(-((IR1.IntLit) a).i);
+		if (n.op == IR1.UOP.NOT && a instanceof IR1.BoolLit)
+			return new IR1.BoolLit(!((IR1.BoolLit) a).b);
+		return null;
+	}
+
+	static Boolean compare(IR1.ROP op, IR1.Src a, IR1.Src b) {
+		if (a instanceof IR1.BoolLit && b instanceof IR1.BoolLit) {
+			boolean x = ((IR1.BoolLit) a).b, y = ((IR1.BoolLit) b).b;
+			if (op == IR1.ROP.EQ)
+				return x == y;
+			if (op == IR1.ROP.NE)
+				return x != y;
+			return null;
+		}
+		if (!(a instanceof IR1.IntLit) || !(b instanceof IR1.IntLit))
+			return null;
+		int x = ((IR1.IntLit) a).i, y = ((IR1.IntLit) b).i;
+		switch (op) {
+			case EQ:
+				return x == y;
+			case NE:
+				return x != y;
+			case LT:
+				return x < y;
+			case LE:
+				return x <= y;
+			case GT:
+				return x > y;
+			default:
+				return x >= y;
+		}
+	}
+
+	static boolean isInt(IR1.Src s, int v) {
+		return s instanceof IR1.IntLit && ((IR1.IntLit) s).i == v;
+	}
+
+	static boolean isIntSrc(IR1.Src s, Set<IR1.Src> ints) {
+		return s instanceof IR1.IntLit || ints.contains(s);
+	}
+
+	//-----------------------------------------------------------------
+	// Inst Helpers
+	//-----------------------------------------------------------------
+	//
+
+	static boolean isVar(IR1.Src s) {
+		return s instanceof IR1.Id || s instanceof IR1.Temp;
+	}
+
+	// Two operands denote the same variable or equal literals.
+	//
+	static boolean same(IR1.Src a, IR1.Src b) {
+		if (a instanceof IR1.IntLit)
+			return b instanceof IR1.IntLit && ((IR1.IntLit) a).i == ((IR1.IntLit) b).i;
+		if (a instanceof IR1.BoolLit)
+			return b instanceof IR1.BoolLit && ((IR1.BoolLit) a).b == ((IR1.BoolLit) b).b;
+		if (a instanceof IR1.StrLit)
+			return b instanceof IR1.StrLit && ((IR1.StrLit) a).s.equals(((IR1.StrLit) b).s);
+		return a.equals(b);
+	}
+
+	// The variable an inst writes, if any.
+	//
+	static IR1.Dest def(IR1.Inst n) {
+		if (n instanceof IR1.Binop) return ((IR1.Binop) n).dst;
+		if (n instanceof IR1.Unop) return ((IR1.Unop) n).dst;
+		if (n instanceof IR1.Move) return ((IR1.Move) n).dst;
+		if (n instanceof IR1.Load) return ((IR1.Load) n).dst;
+		if (n instanceof IR1.Call) return ((IR1.Call) n).rdst;
+		return null;
+	}
+
+	// Rebuild an inst with every variable, read or written, replaced
+	// by f(variable).
+	//
+	static IR1.Inst rename(IR1.Inst n, UnaryOperator<IR1.Src> f) {
+		IR1.Inst m = mapUses(n, s -> isVar(s) ? f.apply(s) : s);
+		IR1.Dest d = def(m);
+		if (d == null || f.apply((IR1.Src) d) == d)
+			return m;
+		IR1.Dest nd = (IR1.Dest) f.apply((IR1.Src) d);
+		if (m instanceof IR1.Binop) {
+			IR1.Binop b = (IR1.Binop) m;
+			return new IR1.Binop(b.op, nd, b.src1, b.src2);
+		}
+		if (m instanceof IR1.Unop) {
+			IR1.Unop u = (IR1.Unop) m;
+			return new IR1.Unop(u.op, nd, u.src);
+		}
+		if (m instanceof IR1.Move)
+			return new IR1.Move(nd, ((IR1.Move) m).src);
+		if (m instanceof IR1.Load)
+			return new IR1.Load(nd, ((IR1.Load) m).addr);
+		IR1.Call c = (IR1.Call) m;
+		return new IR1.Call(c.gname, c.args, nd);
+	}
+
+	// Rebuild a Jump, CJump or LabelDec with its label replaced by
+	// f(label).
+	//
+	static IR1.Inst relabel(IR1.Inst n, UnaryOperator<IR1.Label> f) {
+		if (n instanceof IR1.Jump)
+			return new IR1.Jump(f.apply(((IR1.Jump) n).lab));
+		if (n instanceof IR1.CJump) {
+			IR1.CJump j = (IR1.CJump) n;
+			return new IR1.CJump(j.op, j.src1, j.src2, f.apply(j.lab));
+		}
+		if (n instanceof IR1.LabelDec)
+			return new IR1.LabelDec(f.apply(((IR1.LabelDec) n).lab));
+		return n;
+	}
+
+	// Every variable an inst reads or writes.
+	//
+	static List<IR1.Src> vars(IR1.Inst n) {
+		ArrayList<IR1.Src> vars = new ArrayList<>();
+		IR1.Dest d = def(n);
+		if (d != null)
+			vars.add((IR1.Src) d);
+		for (IR1.Src u : uses(n)) {
+			if (isVar(u))
+				vars.add(u);
+		}
+		return vars;
+	}
+
+	// Every operand an inst reads.
+	//
+	static List<IR1.Src> uses(IR1.Inst n) {
+		ArrayList<IR1.Src> uses = new ArrayList<>();
+		mapUses(n, s -> {
+			uses.add(s);
+			return s;
+		});
+		return uses;
+	}
+
+	// Rebuild an inst with each operand it reads replaced by f(operand).
+	// Answers the inst itself if f changed nothing.
+	//
+	static IR1.Inst mapUses(IR1.Inst n, UnaryOperator<IR1.Src> f) {
+		if (n instanceof IR1.Binop) {
+			IR1.Binop b = (IR1.Binop) n;
+			IR1.Src s1 = f.apply(b.src1), s2 = f.apply(b.src2);
+			return s1 == b.src1 && s2 == b.src2 ? n : new IR1.Binop(b.op, b.dst, s1, s2);
+		}
+		if (n instanceof IR1.Unop) {
+			IR1.Unop u = (IR1.Unop) n;
+			IR1.Src s = f.apply(u.src);
+			return s == u.src ? n : new IR1.Unop(u.op, u.dst, s);
+		}
+		if (n instanceof IR1.Move) {
+			IR1.Move m = (IR1.Move) n;
+			IR1.Src s = f.apply(m.src);
+			return s == m.src ? n : new IR1.Move(m.dst, s);
+		}
+		if (n instanceof IR1.Load) {
+			IR1.Load l = (IR1.Load) n;
+			IR1.Src s = f.apply(l.addr.base);
+			return s == l.addr.base ? n : new IR1.Load(l.dst, new IR1.Addr(s, l.addr.offset));
+		}
+		if (n instanceof IR1.Store) {
+			IR1.Store st = (IR1.Store) n;
+			IR1.Src base = f.apply(st.addr.base), s = f.apply(st.src);
+			return base == st.addr.base && s == st.src ? n
+					: new IR1.Store(new IR1.Addr(base, st.addr.offset), s);
+		}
+		if (n instanceof IR1.Call) {
+			IR1.Call c = (IR1.Call) n;
+			IR1.Src[] args = new IR1.Src[c.args.length];
+			boolean changed = false;
+			for (int i = 0; i < args.length; i++) {
+				args[i] = f.apply(c.args[i]);
+				changed |= args[i] != c.args[i];
+			}
+			return changed ? new IR1.Call(c.gname, args, c.rdst) : n;
+		}
+		if (n instanceof IR1.Return) {
+			IR1.Return r = (IR1.Return) n;
+			if (r.val == null)
+				return n;
+			IR1.Src s = f.apply(r.val);
+			return s == r.val ? n : new IR1.Return(s);
+		}
+		if (n instanceof IR1.CJump) {
+			IR1.CJump j = (IR1.CJump) n;
+			IR1.Src s1 = f.apply(j.src1), s2 = f.apply(j.src2);
+			return s1 == j.src1 && s2 == j.src2 ? n : new IR1.CJump(j.op, s1, s2, j.lab);
+		}
+		return n;
+	}
+
+	//-----------------------------------------------------------------
+	// Flow Graph
+	//-----------------------------------------------------------------
+	//
+
+	// Index of each LabelDec, by label name.
+	//
+	static HashMap<String, Integer> labels(IR1.Func f) {
+		HashMap<String, Integer> labels = new HashMap<>();
+		for (int i = 0; i < f.code.length; i++) {
+			if (f.code[i] instanceof IR1.LabelDec)
+				labels.put(((IR1.LabelDec) f.code[i]).lab.name, i);
+		}
+		return labels;
+	}
+
+	// Successors of inst i. Index code.length stands for falling off
+	// the end.
+	//
+	static int[] succs(IR1.Inst[] code, int i, HashMap<String, Integer> labels) throws Exception {
+		IR1.Inst n = code[i];
+		if (n instanceof IR1.Return)
+			return new int[0];
+		if (n instanceof IR1.Jump)
+			return new int[]{target(((IR1.Jump) n).lab, labels)};
+		if (n instanceof IR1.CJump)
+			return new int[]{i + 1, target(((IR1.CJump) n).lab, labels)};
+		return new int[]{i + 1};
+	}
+
+	static int target(IR1.Label lab, HashMap<String, Integer> labels) throws Exception {
+		Integer t = labels.get(lab.name);
+		if (t == null)
+			throw new IR1Interp.IntException("Undefined label " + lab);
+		return t;
+	}
+}
@@ -0,0 +1,674 @@
+// This is supporting software for CS322 Compilers and Language Design II
+// Copyright (c) Portland State University
+//---------------------------------------------------------------------------
+// For CS322 W'16 (J. Li).
+//
+//
+// Andrew McCann
+// CS322 HW3
+// Winter 2016
+//
+
+// IR1 bytecode VM.
+//
+// Each function's Inst[] is lowered to one dense int[] and run by a
+// single switch loop. An instruction is an opcode word followed by its
+// operand words:
+//
+//   opcode word   -- opcode in the low 8 bits, plus K1/K2 when the
+//                    first/second source operand is a constant
+//   operand words -- frame slot, or constant pool index if its K bit
+//                    is set; jump targets are word offsets in code
+//
+//   ADD..GE       dst src1 src2
+//   NEG, NOT      dst src
+//   MOVE          dst src
+//   LOAD          dst base offset
+//   STORE         base offset src
+//   INTR1         rdst intrinsic src      (rdst -1 if none)
+//   INTR          rdst intrinsic nargs arg...
+//   CALL          rdst func nargs arg...   (rdst -1 if none; args use
+//                                           the FuncLink encoding)
+//   RET           src
+//   RETV                                   (answers the last value returned)
+//   JMP           target
+//   IFEQ..IFGE    src1 src2 target
+//   LOADX         dst base index scale offset
+//   STOREX        base index scale offset src   (K3: src is a constant)
+//
+// Constants stay in the FuncLink's pool; LabelDecs emit nothing.
+//
+// LOADX/STOREX and the IFxx forms are also superinstructions: lowering
+// fuses the front end's array idioms
+//
+//   t = i * 4; t2 = a + t; x = [t2]     -> LOADX x a i 4 0
+//   t = i * 4; t2 = a + t; [t2] = v     -> STOREX a i 4 0 v
+//   t = a < b; if t == true goto L      -> IFLT a b L
+//
+// whenever the intermediate temps are read nowhere else.
+//
+
+import java.util.*;
+
+import ir.*;
+
+public class IR1VM {
+
+	// Opcodes. Binops and compare-branches follow the AOP/ROP order.
+	static final int ADD = 0, SUB = 1, MUL = 2, DIV = 3, AND = 4, OR = 5,
+			EQ = 6, NE = 7, LT = 8, LE = 9, GT = 10, GE = 11,
+			NEG = 12, NOT = 13, MOVE = 14, LOAD = 15, STORE = 16,
+			INTR1 = 17, INTR = 18, CALL = 19, RET = 20, RETV = 21, JMP = 22,
+			IFEQ = 23, IFNE = 24, IFLT = 25, IFLE = 26, IFGT = 27, IFGE = 28,
+			LOADX = 29, STOREX = 30;
+
+	// Operand-kind bits
+	static final int K1 = 0x100, K2 = 0x200, K3 = 0x400;
+
+	// A lowered function.
+	//
+	static class VFunc {
+		final String name;
+		final IR1Interp.FuncLink link;
+		int[] code;
+
+		VFunc(String name, IR1Interp.FuncLink link) {
+			this.name = name;
+			this.link = link;
+		}
+	}
+
+	// All functions, in the order CALL's 'func' word indexes them
+	static VFunc[] funcs;
+	static HashMap<String, Integer> funcIds;
+
+	// Machines that haven't finished, whose stacks a collection scans
+	static ArrayList<Machine> machines = new ArrayList<>();
+
+	//-----------------------------------------------------------------
+	// Entry Point
+	//-----------------------------------------------------------------
+	//
+	static void run(IR1Interp.FuncLink main) throws Exception {
+		funcs = new VFunc[IR1Interp.funcMap.size()];
+		funcIds = new HashMap<>();
+		for (IR1Interp.FuncLink l : IR1Interp.funcMap.values()) {
+			funcIds.put(l.func.gname.s, funcIds.size());
+			funcs[funcIds.size() - 1] = new VFunc(l.func.gname.s, l);
+		}
+		for (VFunc f : funcs)
+			f.code = lower(f.link);
+		// With -slice=N the program runs N calls and taken jumps at a
+		// time, as a scheduler would run it
+		Machine m = new Machine(funcs[funcId(main.func.gname.s)]);
+		while (!m.run(IR1Interp.slice))
+			;
+	}
+
+	// Mark the blocks the live part of each Machine's value stack, and
+	// its last return value, point to (see IR1Heap.collect).
+	//
+	static void markRoots(IR1Heap h, IR1Heap.IntStack work) throws IR1Interp.IntException {
+		for (Machine m : machines) {
+			h.mark(m.retVal, work);
+			for (int i = 0; i < m.sp; i++)
+				h.mark(m.stack[i], work);
+		}
+	}
+
+	static int funcId(String name) {
+		return funcIds.get(name);
+	}
+
+	//-----------------------------------------------------------------
+	// Lowering
+	//-----------------------------------------------------------------
+	//
+	static int[] lower(IR1Interp.FuncLink link) throws Exception {
+		IR1.Inst[] insts = link.func.code;
+		Emitter e = new Emitter();
+		// Word offset of each inst, for resolving jump targets
+		int[] starts = new int[insts.length + 1];
+		List<Set<IR1.Src>> liveOut = IR1Opt.liveness(insts, IR1Opt.labels(link.func));
+		int branches = 0, loads = 0, stores = 0;
+		for (int i = 0; i < insts.length; ) {
+			starts[i] = e.len;
+			int fused = fuse(e, link, i, liveOut);
+			if (fused > 0) {
+				// Nothing can jump into the middle of a fused run, as
+				// that would need a LabelDec there
+				for (int j = 1; j < fused; j++)
+					starts[i + j] = starts[i];
+				if (fused == 2)
+					branches++;
+				else if (insts[i + 2] instanceof IR1.Load)
+					loads++;
+				else
+					stores++;
+				i += fused;
+			} else {
+				lower(e, link, i);
+				i++;
+			}
+		}
+		starts[insts.length] = e.len;
+		e.word(RETV);
+		if (IR1Interp.verbose && branches + loads + stores > 0)
+			System.err.println("[vm] " + link.func.gname + ": fused " + branches + " IFxx, "
+					+ loads + " LOADX, " + stores + " STOREX");
+		for (int at : e.fixups)
+			e.code[at] = starts[e.code[at]];
+		return Arrays.copyOf(e.code, e.len);
+	}
+
+	static void lower(Emitter e, IR1Interp.FuncLink link, int pc) throws Exception {
+		IR1.Inst n = link.func.code[pc];
+		int[] o = link.opnds[pc];
+		int target = link.targets[pc];
+		if (n instanceof IR1.Binop) {
+			e.op(opcode(((IR1.Binop) n).op, ADD), o[1], o[2]);
+			e.word(o[0]);
+			e.src(o[1]);
+			e.src(o[2]);
+		} else if (n instanceof IR1.Unop) {
+			e.op(((IR1.Unop) n).op == IR1.UOP.NEG ? NEG : NOT, o[1], 0);
+			e.word(o[0]);
+			e.src(o[1]);
+		} else if (n instanceof IR1.Move) {
+			e.op(MOVE, o[1], 0);
+			e.word(o[0]);
+			e.src(o[1]);
+		} else if (n instanceof IR1.Load) {
+			e.op(LOAD, o[1], 0);
+			e.word(o[0]);
+			e.src(o[1]);
+			e.word(((IR1.Load) n).addr.offset);
+		} else if (n instanceof IR1.Store) {
+			e.op(STORE, o[0], o[1]);
+			e.src(o[0]);
+			e.word(((IR1.Store) n).addr.offset);
+			e.src(o[1]);
+		} else if (n instanceof IR1.Call) {
+			lowerCall(e, link.intrinsics[pc], link.callees[pc], o);
+		} else if (n instanceof IR1.Return) {
+			if (o[0] == IR1Interp.NONE) {
+				e.word(RETV);
+			} else {
+				e.op(RET, o[0], 0);
+				e.src(o[0]);
+			}
+		} else if (n instanceof IR1.CJump) {
+			e.op(opcode(((IR1.CJump) n).op, IFEQ - EQ), o[0], o[1]);
+			e.src(o[0]);
+			e.src(o[1]);
+			e.target(target);
+		} else if (n instanceof IR1.Jump) {
+			e.word(JMP);
+			e.target(target);
+		} else if (!(n instanceof IR1.LabelDec)) {
+			throw new IR1Interp.IntException("Unknown Inst: " + n);
+		}
+	}
+
+	static void lowerCall(Emitter e, IR1Intrinsic in, IR1Interp.FuncLink callee, int[] o) {
+		if (in != null && in.arity == 1) {
+			e.op(INTR1, o[1], 0);
+			e.word(o[0] == IR1Interp.NONE ? -1 : o[0]);
+			e.word(in.id);
+			e.src(o[1]);
+		} else if (in != null) {
+			e.word(INTR);
+			e.word(o[0] == IR1Interp.NONE ? -1 : o[0]);
+			e.word(in.id);
+			e.word(o.length - 1);
+			for (int i = 1; i < o.length; i++)
+				e.word(o[i]);
+		} else {
+			e.word(CALL);
+			e.word(o[0] == IR1Interp.NONE ? -1 : o[0]);
+			e.word(funcId(callee.func.gname.s));
+			e.word(o.length - 1);
+			for (int i = 1; i < o.length; i++)
+				e.word(o[i]);
+		}
+	}
+
+	//-----------------------------------------------------------------
+	// Superinstructions
+	//-----------------------------------------------------------------
+	//
+
+	// Try to emit a superinstruction for the insts starting at i, and
+	// answer how many insts it covers (0 if none applies). The temps a
+	// superinstruction skips writing must be dead after it; 'liveOut'
+	// is by variable, since variables share slots.
+	//
+	static int fuse(Emitter e, IR1Interp.FuncLink link, int i, List<Set<IR1.Src>> liveOut) {
+		IR1.Inst[] insts = link.func.code;
+		if (!(insts[i] instanceof IR1.Binop) || i + 1 >= insts.length)
+			return 0;
+		IR1.Binop first = (IR1.Binop) insts[i];
+		int[] o1 = link.opnds[i];
+		int t = o1[0];
+		if (liveOut.get(i + 1).contains((IR1.Src) first.dst))
+			return 0;
+
+		// t = a ROP b; if t ==/!= true/false goto L
+		if (first.op instanceof IR1.ROP && insts[i + 1] instanceof IR1.CJump) {
+			IR1.CJump cj = (IR1.CJump) insts[i + 1];
+			int[] o2 = link.opnds[i + 1];
+			int other = o2[0] == t ? o2[1] : o2[1] == t ? o2[0] : 0;
+			if (other >= 0 || (cj.op != IR1.ROP.EQ && cj.op != IR1.ROP.NE)
+					|| IR1Interp.Val.tag(link.consts[~other]) != IR1Interp.Val.BOOL)
+				return 0;
+			// Branch on the compare itself, or on its negation
+			boolean sense = IR1Interp.Val.b(link.consts[~other]) == (cj.op == IR1.ROP.EQ);
+			IR1.ROP rop = sense ? (IR1.ROP) first.op : negate((IR1.ROP) first.op);
+			e.op(opcode(rop, IFEQ - EQ), o1[1], o1[2]);
+			e.src(o1[1]);
+			e.src(o1[2]);
+			e.target(link.targets[i + 1]);
+			return 2;
+		}
+
+		// t = i * scale; t2 = a + t; x = [t2]  or  [t2] = v
+		if (first.op != IR1.AOP.MUL || i + 2 >= insts.length
+				|| !(insts[i + 1] instanceof IR1.Binop) || ((IR1.Binop) insts[i + 1]).op != IR1.AOP.ADD)
+			return 0;
+		int index, scale;
+		if (isIntConst(link, o1[2])) {
+			index = o1[1];
+			scale = IR1Interp.Val.i(link.consts[~o1[2]]);
+		} else if (isIntConst(link, o1[1])) {
+			index = o1[2];
+			scale = IR1Interp.Val.i(link.consts[~o1[1]]);
+		} else {
+			return 0;
+		}
+		int[] o2 = link.opnds[i + 1];
+		int t2 = o2[0];
+		int base = o2[1] == t ? o2[2] : o2[2] == t ? o2[1] : t;
+		if (base == t || liveOut.get(i + 2).contains((IR1.Src) ((IR1.Binop) insts[i + 1]).dst))
+			return 0;
+		IR1.Inst last = insts[i + 2];
+		int[] o3 = link.opnds[i + 2];
+		if (last instanceof IR1.Load && o3[1] == t2) {
+			e.op(LOADX, base, index);
+			e.word(o3[0]);
+			e.src(base);
+			e.src(index);
+			e.word(scale);
+			e.word(((IR1.Load) last).addr.offset);
+			return 3;
+		}
+		if (last instanceof IR1.Store && o3[0] == t2) {
+			e.word(STOREX | (base < 0 ? K1 : 0) | (index < 0 ? K2 : 0) | (o3[1] < 0 ? K3 : 0));
+			e.src(base);
+			e.src(index);
+			e.word(scale);
+			e.word(((IR1.Store) last).addr.offset);
+			e.src(o3[1]);
+			return 3;
+		}
+		return 0;
+	}
+
+	static boolean isIntConst(IR1Interp.FuncLink link, int opnd) {
+		return opnd < 0 && IR1Interp.Val.tag(link.consts[~opnd]) == IR1Interp.Val.INT;
+	}
+
+	static IR1.ROP negate(IR1.ROP op) {
+		switch (op) {
+			case EQ:
+				return IR1.ROP.NE;
+			case NE:
+				return IR1.ROP.EQ;
+			case LT:
+				return IR1.ROP.GE;
+			case LE:
+				return IR1.ROP.GT;
+			case GT:
+				return IR1.ROP.LE;
+			default:
+				return IR1.ROP.LT;
+		}
+	}
+
+	// Binop/CJump opcode for 'op', counted from 'base'
+	static int opcode(IR1.BOP op, int base) {
+		return base + (op instanceof IR1.AOP ? ((IR1.AOP) op).ordinal() : EQ + ((IR1.ROP) op).ordinal());
+	}
+
+	static class Emitter {
+		int[] code = new int[64];
+		int len = 0;
+		ArrayList<Integer> fixups = new ArrayList<>();
+
+		void word(int w) {
+			if (len == code.length)
+				code = Arrays.copyOf(code, len * 2);
+			code[len++] = w;
+		}
+
+		// Opcode word, with K bits for constant source operands
+		void op(int opcode, int src1, int src2) {
+			word(opcode | (src1 < 0 ? K1 : 0) | (src2 < 0 ? K2 : 0));
+		}
+
+		// Source operand: slot, or constant pool index
+		void src(int opnd) {
+			word(opnd < 0 ? ~opnd : opnd);
+		}
+
+		// Inst index, patched to a word offset
+		void target(int inst) {
+			fixups.add(len);
+			word(inst);
+		}
+	}
+
+	//-----------------------------------------------------------------
+	// The VM Loop
+	//-----------------------------------------------------------------
+	//
+	// Calls don't recurse in Java: CALL saves the caller's state in a
+	// Frame on the Machine's stack and switches to the callee, and RET
+	// pops it back. All the state of a run (frames, value stack, the
+	// last value returned) lives in the Machine; Machines share only
+	// the lowered code and the heap. So a program can also be run in
+	// slices, interleaved with others: run() gives up after 'budget'
+	// calls and taken jumps, and carries on from there when called
+	// again.
+	//
+	// Frames are windows in one growable value stack: a function's
+	// slot s is stack[fp + s], and a callee's window starts at the
+	// caller's 'sp'. CALL writes the args straight into the callee's
+	// param slots, and RET releases the window by moving 'sp' back, so
+	// calls allocate nothing once the stacks have grown.
+	//
+	static class Frame {
+		VFunc f;
+		int fp;        // the caller's window
+		int pc;        // where the caller resumes
+		int rdst;      // caller slot for the result, or -1
+	}
+
+	static class Machine {
+		// Suspended callers, innermost last. Frames are reused as the
+		// stack goes up and down.
+		Frame[] frames = new Frame[16];
+		int depth;
+
+		// Value stack; the running function's window is [fp, sp)
+		long[] stack;
+		int fp, sp;
+
+		// The running function
+		VFunc f;
+		int pc;
+
+		long retVal = IR1Interp.Val.UND;  // what the last RET returned
+		boolean done;
+		long result;   // what _main returned
+
+		Machine(VFunc main) {
+			f = main;
+			stack = new long[Math.max(1024, 2 * main.link.nslots)];
+			sp = main.link.nslots;
+			machines.add(this);
+		}
+
+		void save(VFunc f, int fp, int sp, int pc) {
+			this.f = f;
+			this.fp = fp;
+			this.sp = sp;
+			this.pc = pc;
+		}
+
+		// Run until _main returns (answering true) or the budget is
+		// used up (answering false).
+		//
+		boolean run(long budget) throws Exception {
+			VFunc f = this.f;
+			int[] code = f.code;
+			long[] k = f.link.consts;
+			long[] st = stack;
+			int fp = this.fp, sp = this.sp;
+			int pc = this.pc;
+			for (;;) {
+				int w = code[pc];
+				switch (w & 0xff) {
+					case ADD:
+						st[fp + code[pc + 1]] = ofInt(num(src1(w, code[pc + 2], st, fp, k)) + num(src2(w, code[pc + 3], st, fp, k)));
+						pc += 4;
+						break;
+					case SUB:
+						st[fp + code[pc + 1]] = ofInt(num(src1(w, code[pc + 2], st, fp, k)) - num(src2(w, code[pc + 3], st, fp, k)));
+						pc += 4;
+						break;
+					case MUL:
+						st[fp + code[pc + 1]] = ofInt(num(src1(w, code[pc + 2], st, fp, k)) * num(src2(w, code[pc + 3], st, fp, k)));
+						pc += 4;
+						break;
+					case DIV:
+						st[fp + code[pc + 1]] = ofInt(num(src1(w, code[pc + 2], st, fp, k)) / num(src2(w, code[pc + 3], st, fp, k)));
+						pc += 4;
+						break;
+					case AND:
+						st[fp + code[pc + 1]] = ofBool(bool(src1(w, code[pc + 2], st, fp, k)) && bool(src2(w, code[pc + 3], st, fp, k)));
+						pc += 4;
+						break;
+					case OR:
+						st[fp + code[pc + 1]] = ofBool(bool(src1(w, code[pc + 2], st, fp, k)) || bool(src2(w, code[pc + 3], st, fp, k)));
+						pc += 4;
+						break;
+					case EQ:
+					case NE:
+					case LT:
+					case LE:
+					case GT:
+					case GE:
+						st[fp + code[pc + 1]] = ofBool(compare(w & 0xff, src1(w, code[pc + 2], st, fp, k), src2(w, code[pc + 3], st, fp, k)));
+						pc += 4;
+						break;
+					case NEG:
+						st[fp + code[pc + 1]] = ofInt(-num(src1(w, code[pc + 2], st, fp, k)));
+						pc += 3;
+						break;
+					case NOT:
+						st[fp + code[pc + 1]] = ofBool(!bool(src1(w, code[pc + 2], st, fp, k)));
+						pc += 3;
+						break;
+					case MOVE:
+						st[fp + code[pc + 1]] = src1(w, code[pc + 2], st, fp, k);
+						pc += 3;
+						break;
+					case LOAD:
+						st[fp + code[pc + 1]] = IR1Interp.memLoad(num(src1(w, code[pc + 2], st, fp, k)) + code[pc + 3]);
+						pc += 4;
+						break;
+					case STORE:
+						IR1Interp.memStore(num(src1(w, code[pc + 1], st, fp, k)) + code[pc + 2], src2(w, code[pc + 3], st, fp, k));
+						pc += 4;
+						break;
+					case INTR1: {
+						this.sp = sp;   // for a collection
+						long ret = IR1Intrinsic.table[code[pc + 2]].call1(src1(w, code[pc + 3], st, fp, k));
+						if (code[pc + 1] >= 0)
+							st[fp + code[pc + 1]] = ret;
+						pc += 4;
+						break;
+					}
+					case INTR: {
+						IR1Intrinsic in = IR1Intrinsic.table[code[pc + 2]];
+						int nargs = code[pc + 3];
+						long ret;
+						this.sp = sp;
+						if (nargs == 0) {
+							ret = in.call0();
+						} else {
+							int a = code[pc + 4], b = code[pc + 5];
+							long x = a >= 0 ? st[fp + a] : k[~a], y = b >= 0 ? st[fp + b] : k[~b];
+							if (nargs == 2) {
+								ret = in.call2(x, y);
+							} else {
+								int c = code[pc + 6];
+								ret = in.call3(x, y, c >= 0 ? st[fp + c] : k[~c]);
+							}
+						}
+						if (code[pc + 1] >= 0)
+							st[fp + code[pc + 1]] = ret;
+						pc += 4 + nargs;
+						break;
+					}
+					case CALL: {
+						VFunc callee = funcs[code[pc + 2]];
+						int nargs = code[pc + 3];
+						int nslots = callee.link.nslots;
+						if (sp + nslots > st.length)
+							st = stack = Arrays.copyOf(st, Math.max(st.length * 2, sp + nslots));
+						// Args go straight into the callee's param slots;
+						// the rest of its window starts out undefined
+						for (int i = 0; i < nargs; i++) {
+							int a = code[pc + 4 + i];
+							st[sp + i] = a >= 0 ? st[fp + a] : k[~a];
+						}
+						Arrays.fill(st, sp + nargs, sp + nslots, IR1Interp.Val.UND);
+						if (depth == frames.length)
+							frames = Arrays.copyOf(frames, depth * 2);
+						Frame caller = frames[depth];
+						if (caller == null)
+							caller = frames[depth] = new Frame();
+						depth++;
+						caller.f = f;
+						caller.fp = fp;
+						caller.pc = pc + 4 + nargs;
+						caller.rdst = code[pc + 1];
+						f = callee;
+						code = f.code;
+						k = f.link.consts;
+						fp = sp;
+						sp += nslots;
+						pc = 0;
+						if (--budget == 0) {
+							save(f, fp, sp, pc);
+							return false;
+						}
+						break;
+					}
+					case RET:
+					case RETV: {
+						// Like the tree-walker, a bare return answers
+						// whatever the last return with a value did
+						long ret = retVal;
+						if ((w & 0xff) == RET)
+							ret = retVal = src1(w, code[pc + 1], st, fp, k);
+						if (depth == 0) {
+							save(f, fp, sp, pc);
+							done = true;
+							machines.remove(this);
+							result = ret;
+							return true;
+						}
+						Frame caller = frames[--depth];
+						f = caller.f;
+						code = f.code;
+						k = f.link.consts;
+						sp = fp;
+						fp = caller.fp;
+						pc = caller.pc;
+						if (caller.rdst >= 0)
+							st[fp + caller.rdst] = ret;
+						break;
+					}
+					case JMP:
+						pc = code[pc + 1];
+						if (--budget == 0) {
+							save(f, fp, sp, pc);
+							return false;
+						}
+						break;
+					case IFEQ:
+					case IFNE:
+					case IFLT:
+					case IFLE:
+					case IFGT:
+					case IFGE:
+						if (compare((w & 0xff) - (IFEQ - EQ), src1(w, code[pc + 1], st, fp, k), src2(w, code[pc + 2], st, fp, k))) {
+							pc = code[pc + 3];
+							if (--budget == 0) {
+								save(f, fp, sp, pc);
+								return false;
+							}
+						} else {
+							pc += 4;
+						}
+						break;
+					case LOADX:
+						st[fp + code[pc + 1]] = IR1Interp.memLoad(num(src1(w, code[pc + 2], st, fp, k))
+								+ num(src2(w, code[pc + 3], st, fp, k)) * code[pc + 4] + code[pc + 5]);
+						pc += 6;
+						break;
+					case STOREX:
+						IR1Interp.memStore(num(src1(w, code[pc + 1], st, fp, k))
+								+ num(src2(w, code[pc + 2], st, fp, k)) * code[pc + 3] + code[pc + 4],
+								(w & K3) != 0 ? k[code[pc + 5]] : st[fp + code[pc + 5]]);
+						pc += 6;
+						break;
+					default:
+						throw new IR1Interp.IntException("Bad opcode " + w + " in " + f.name);
+				}
+			}
+		}
+	}
+
+	//-----------------------------------------------------------------
+	// Helpers
+	//-----------------------------------------------------------------
+	//
+	static long src1(int w, int x, long[] st, int fp, long[] k) {
+		return (w & K1) != 0 ? k[x] : st[fp + x];
+	}
+
+	static long src2(int w, int x, long[] st, int fp, long[] k) {
+		return (w & K2) != 0 ? k[x] : st[fp + x];
+	}
+
+	static int num(long v) throws IR1Interp.IntException {
+		return IR1Interp.Val.num(v);
+	}
+
+	static boolean bool(long v) throws IR1Interp.IntException {
+		return IR1Interp.Val.bool(v);
+	}
+
+	static long ofInt(int i) {
+		return IR1Interp.Val.ofInt(i);
+	}
+
+	static long ofBool(boolean b) {
+		return IR1Interp.Val.ofBool(b);
+	}
+
+	// 'rop' is one of EQ..GE. Booleans only support == and !=.
+	//
+	static boolean compare(int rop, long l, long r) throws IR1Interp.IntException {
+		if (IR1Interp.Val.tag(l) == IR1Interp.Val.BOOL && (rop == EQ || rop == NE))
+			return (bool(l) == bool(r)) == (rop == EQ);
+		int x = num(l), y = num(r);
+		switch (rop) {
+			case EQ:
+				return x == y;
+			case NE:
+				return x != y;
+			case LT:
+				return x < y;
+			case LE:
+				return x <= y;
+			case GT:
+				return x > y;
+			default:
+				return x >= y;
+		}
+	}
+}